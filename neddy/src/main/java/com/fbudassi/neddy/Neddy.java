@@ -1,6 +1,18 @@
 package com.fbudassi.neddy;
 
+import com.fbudassi.neddy.category.BroadcastGroup;
+import com.fbudassi.neddy.category.MessageCoalescer;
 import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.handler.SlowConsumerMonitor;
+import com.fbudassi.neddy.ssl.SslContextManager;
+import com.fbudassi.neddy.staticcontent.AssetPackManager;
+import com.fbudassi.neddy.staticcontent.CompressedVariantCache;
+import com.fbudassi.neddy.staticcontent.FileChannelPool;
+import com.fbudassi.neddy.staticcontent.PathResolver;
+import com.fbudassi.neddy.staticcontent.ServablePathFilter;
+import com.fbudassi.neddy.staticcontent.StaticFileCache;
+import com.fbudassi.neddy.staticcontent.WwwRootWatcher;
+import com.fbudassi.neddy.util.DateUtil;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.util.concurrent.Executors;
@@ -28,6 +40,7 @@ public class Neddy implements Shutdownable, NeddyMXBean {
     // Resources to be freed when shutdown happens.
     private ServerBootstrap bootstrap;
     private Timer timer;
+    private WwwRootWatcher watcher;
     private static ChannelGroup ALL_CHANNELS;
     // Configuration variables.
     private static final String SERVERNAME = Config.getValue(Config.KEY_SERVERNAME);
@@ -36,6 +49,7 @@ public class Neddy implements Shutdownable, NeddyMXBean {
     private static final boolean KEEPALIVE = Config.getBooleanValue(Config.KEY_KEEPALIVE);
     private static final boolean TCPNODELAY = Config.getBooleanValue(Config.KEY_TCPNODELAY);
     private static final int TIMEOUT = Config.getIntValue(Config.KEY_TIMEOUT);
+    private static final String WWWROOT = Config.getValue(Config.KEY_WWWROOT);
 
     /**
      * Static constructor.
@@ -73,6 +87,33 @@ public class Neddy implements Shutdownable, NeddyMXBean {
         // Create timer used to close expired keep-alive connections.
         this.setTimer(new HashedWheelTimer());
 
+        // Format the current date once per second for the Date headers.
+        DateUtil.start(getTimer());
+
+        // Watch the WWW root to keep the static content caches coherent with it.
+        this.setWatcher(new WwwRootWatcher(WWWROOT));
+        PathResolver.getInstance().watch(getWatcher());
+        getWatcher().addListener(StaticFileCache.getInstance());
+        getWatcher().addListener(CompressedVariantCache.getInstance());
+        getWatcher().addListener(FileChannelPool.getInstance());
+        getWatcher().start();
+        ServablePathFilter.getInstance().watch(getWatcher());
+
+        // Close the pooled file channels that stay unused.
+        FileChannelPool.getInstance().start(getTimer());
+
+        // Disconnect the listeners that stay stalled.
+        SlowConsumerMonitor.getInstance().start(getTimer());
+
+        // Send the coalesced messages when their window is over.
+        MessageCoalescer.start(getTimer());
+
+        // Map the asset pack in memory, if any.
+        AssetPackManager.getInstance().load();
+
+        // Load the TLS certificate, if enabled.
+        SslContextManager.getInstance().start();
+
         // Configure the server.
         this.setBootstrap(new ServerBootstrap(
                 new NioServerSocketChannelFactory(
@@ -117,10 +158,19 @@ public class Neddy implements Shutdownable, NeddyMXBean {
         // Release timer resources.
         getTimer().stop();
 
+        // Stop watching the WWW root.
+        getWatcher().shutdown();
+
+        // Stop compressing static files.
+        CompressedVariantCache.getInstance().shutdown();
+
         // Close all connections and server sockets.
         ChannelGroupFuture groupFuture = Neddy.getAllChannels().close();
         groupFuture.awaitUninterruptibly();
 
+        // Close the pooled file channels.
+        FileChannelPool.getInstance().shutdown();
+
         // Shutdown the selector loop (boss and workers).
         getBootstrap().getFactory().releaseExternalResources();
     }
@@ -136,6 +186,307 @@ public class Neddy implements Shutdownable, NeddyMXBean {
         return getAllChannels().size() - 1;
     }
 
+    /**
+     * Gets the number of requested Uris whose resolution is held in memory.
+     *
+     * @return
+     */
+    @Override
+    public int getStaticResolvedPaths() {
+        return PathResolver.getInstance().getResolvedPaths();
+    }
+
+    /**
+     * Gets the number of requests for missing static files rejected by the
+     * path filter without going to the filesystem.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticPathFilterRejections() {
+        return ServablePathFilter.getInstance().getRejected();
+    }
+
+    /**
+     * Gets the fraction of the requests for missing static files that passed
+     * the path filter.
+     *
+     * @return
+     */
+    @Override
+    public double getStaticPathFilterFalsePositiveRate() {
+        return ServablePathFilter.getInstance().getFalsePositiveRate();
+    }
+
+    /**
+     * Gets the time in ms taken by the last rebuild of the path filter.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticPathFilterRebuildTime() {
+        return ServablePathFilter.getInstance().getRebuildTime();
+    }
+
+    /**
+     * Gets the number of static file requests served from memory.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCacheHits() {
+        return StaticFileCache.getInstance().getHits();
+    }
+
+    /**
+     * Gets the number of static file requests not found in memory.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCacheMisses() {
+        return StaticFileCache.getInstance().getMisses();
+    }
+
+    /**
+     * Gets the number of static files evicted from memory to make room for
+     * other ones.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCacheEvictions() {
+        return StaticFileCache.getInstance().getEvictions();
+    }
+
+    /**
+     * Gets the number of static file cache misses that were answered by the
+     * load of a concurrent one instead of reading the file again.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCacheCoalesced() {
+        return StaticFileCache.getInstance().getCoalesced();
+    }
+
+    /**
+     * Gets the number of bytes of static files currently held in memory.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCacheSize() {
+        return StaticFileCache.getInstance().getSize();
+    }
+
+    /**
+     * Gets the number of static files currently held in memory.
+     *
+     * @return
+     */
+    @Override
+    public int getStaticCacheEntries() {
+        return StaticFileCache.getInstance().getEntries();
+    }
+
+    /**
+     * Gets the number of static files compressed on the fly so far.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCompressions() {
+        return CompressedVariantCache.getInstance().getCompressions();
+    }
+
+    /**
+     * Gets the number of compressed bytes of static files currently held in
+     * memory.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticCompressedSize() {
+        return CompressedVariantCache.getInstance().getSize();
+    }
+
+    /**
+     * Gets the number of compressed static files currently held in memory.
+     *
+     * @return
+     */
+    @Override
+    public int getStaticCompressedEntries() {
+        return CompressedVariantCache.getInstance().getEntries();
+    }
+
+    /**
+     * Gets the number of channels of big static files currently kept open.
+     *
+     * @return
+     */
+    @Override
+    public int getStaticOpenFileChannels() {
+        return FileChannelPool.getInstance().getOpenChannels();
+    }
+
+    /**
+     * Gets the number of channels of big static files opened so far.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticOpenedFileChannels() {
+        return FileChannelPool.getInstance().getOpened();
+    }
+
+    /**
+     * Gets the number of requests of big static files served from an already
+     * open channel.
+     *
+     * @return
+     */
+    @Override
+    public long getStaticReusedFileChannels() {
+        return FileChannelPool.getInstance().getReused();
+    }
+
+    /**
+     * Gets the number of paths served from the asset pack.
+     *
+     * @return
+     */
+    @Override
+    public int getAssetPackEntries() {
+        return AssetPackManager.getInstance().getEntries();
+    }
+
+    /**
+     * Reloads the asset pack, replacing the current one atomically.
+     *
+     * @return true if the pack was reloaded
+     */
+    @Override
+    public boolean reloadAssetPack() {
+        return AssetPackManager.getInstance().load();
+    }
+
+    /**
+     * Gets the number of TLS handshakes finished so far.
+     *
+     * @return
+     */
+    @Override
+    public long getSslHandshakes() {
+        return SslContextManager.getInstance().getHandshakes();
+    }
+
+    /**
+     * Gets the number of TLS handshakes that failed so far.
+     *
+     * @return
+     */
+    @Override
+    public long getSslFailedHandshakes() {
+        return SslContextManager.getInstance().getFailedHandshakes();
+    }
+
+    /**
+     * Gets the TLS handshakes per second since the previous read.
+     *
+     * @return
+     */
+    @Override
+    public double getSslHandshakeRate() {
+        return SslContextManager.getInstance().getHandshakeRate();
+    }
+
+    /**
+     * Gets the fraction of the TLS handshakes that resumed a cached session.
+     *
+     * @return
+     */
+    @Override
+    public double getSslResumptionRatio() {
+        return SslContextManager.getInstance().getResumptionRatio();
+    }
+
+    /**
+     * Gets the number of broadcast writes to the listeners that failed so far.
+     *
+     * @return
+     */
+    @Override
+    public long getBroadcastFailedWrites() {
+        return BroadcastGroup.getTotalFailedWrites();
+    }
+
+    /**
+     * Gets the number of broadcast frames dropped because they were the
+     * oldest ones held for a slow listener.
+     *
+     * @return
+     */
+    @Override
+    public long getSlowConsumerDroppedOldest() {
+        return SlowConsumerMonitor.getInstance().getDroppedOldest();
+    }
+
+    /**
+     * Gets the number of broadcast frames dropped because they were the
+     * newest ones for a slow listener.
+     *
+     * @return
+     */
+    @Override
+    public long getSlowConsumerDroppedNewest() {
+        return SlowConsumerMonitor.getInstance().getDroppedNewest();
+    }
+
+    /**
+     * Gets the number of broadcast frames replaced by a newer one of their
+     * category for a slow listener.
+     *
+     * @return
+     */
+    @Override
+    public long getSlowConsumerConflated() {
+        return SlowConsumerMonitor.getInstance().getConflated();
+    }
+
+    /**
+     * Gets the number of listeners disconnected because they fell too far
+     * behind.
+     *
+     * @return
+     */
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return SlowConsumerMonitor.getInstance().getDisconnects();
+    }
+
+    /**
+     * Gets the number of listeners disconnected because they didn't take any
+     * message for too long.
+     *
+     * @return
+     */
+    @Override
+    public long getSlowConsumerWriteTimeouts() {
+        return SlowConsumerMonitor.getInstance().getWriteTimeouts();
+    }
+
+    /**
+     * Gets the stalled listeners holding the most bytes.
+     *
+     * @return
+     */
+    @Override
+    public String[] getSlowConsumerLaggards() {
+        return SlowConsumerMonitor.getInstance().getLaggards();
+    }
+
     /**
      * @return the bootstrap
      */
@@ -164,6 +515,20 @@ public class Neddy implements Shutdownable, NeddyMXBean {
         this.timer = timer;
     }
 
+    /**
+     * @return the watcher
+     */
+    public WwwRootWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * @param watcher the watcher to set
+     */
+    public void setWatcher(WwwRootWatcher watcher) {
+        this.watcher = watcher;
+    }
+
     /**
      * @return the ALL_CHANNELS
      */
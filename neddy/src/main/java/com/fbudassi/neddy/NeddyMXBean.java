@@ -17,4 +17,218 @@ public interface NeddyMXBean {
      * @return
      */
     int getOpenClientConnectionsNumber();
+
+    /**
+     * Gets the number of requested Uris whose resolution is held in memory.
+     *
+     * @return
+     */
+    int getStaticResolvedPaths();
+
+    /**
+     * Gets the number of requests for missing static files rejected by the
+     * path filter without going to the filesystem.
+     *
+     * @return
+     */
+    long getStaticPathFilterRejections();
+
+    /**
+     * Gets the fraction of the requests for missing static files that passed
+     * the path filter.
+     *
+     * @return
+     */
+    double getStaticPathFilterFalsePositiveRate();
+
+    /**
+     * Gets the time in ms taken by the last rebuild of the path filter.
+     *
+     * @return
+     */
+    long getStaticPathFilterRebuildTime();
+
+    /**
+     * Gets the number of static file requests served from memory.
+     *
+     * @return
+     */
+    long getStaticCacheHits();
+
+    /**
+     * Gets the number of static file requests not found in memory.
+     *
+     * @return
+     */
+    long getStaticCacheMisses();
+
+    /**
+     * Gets the number of static files evicted from memory to make room for
+     * other ones.
+     *
+     * @return
+     */
+    long getStaticCacheEvictions();
+
+    /**
+     * Gets the number of static file cache misses that were answered by the
+     * load of a concurrent one instead of reading the file again.
+     *
+     * @return
+     */
+    long getStaticCacheCoalesced();
+
+    /**
+     * Gets the number of bytes of static files currently held in memory.
+     *
+     * @return
+     */
+    long getStaticCacheSize();
+
+    /**
+     * Gets the number of static files currently held in memory.
+     *
+     * @return
+     */
+    int getStaticCacheEntries();
+
+    /**
+     * Gets the number of static files compressed on the fly so far.
+     *
+     * @return
+     */
+    long getStaticCompressions();
+
+    /**
+     * Gets the number of compressed bytes of static files currently held in
+     * memory.
+     *
+     * @return
+     */
+    long getStaticCompressedSize();
+
+    /**
+     * Gets the number of compressed static files currently held in memory.
+     *
+     * @return
+     */
+    int getStaticCompressedEntries();
+
+    /**
+     * Gets the number of channels of big static files currently kept open.
+     *
+     * @return
+     */
+    int getStaticOpenFileChannels();
+
+    /**
+     * Gets the number of channels of big static files opened so far.
+     *
+     * @return
+     */
+    long getStaticOpenedFileChannels();
+
+    /**
+     * Gets the number of requests of big static files served from an already
+     * open channel.
+     *
+     * @return
+     */
+    long getStaticReusedFileChannels();
+
+    /**
+     * Gets the number of paths served from the asset pack.
+     *
+     * @return
+     */
+    int getAssetPackEntries();
+
+    /**
+     * Reloads the asset pack, replacing the current one atomically.
+     *
+     * @return true if the pack was reloaded
+     */
+    boolean reloadAssetPack();
+
+    /**
+     * Gets the number of TLS handshakes finished so far.
+     *
+     * @return
+     */
+    long getSslHandshakes();
+
+    /**
+     * Gets the number of TLS handshakes that failed so far.
+     *
+     * @return
+     */
+    long getSslFailedHandshakes();
+
+    /**
+     * Gets the TLS handshakes per second since the previous read.
+     *
+     * @return
+     */
+    double getSslHandshakeRate();
+
+    /**
+     * Gets the fraction of the TLS handshakes that resumed a cached session.
+     *
+     * @return
+     */
+    double getSslResumptionRatio();
+
+    /**
+     * Gets the number of broadcast writes to the listeners that failed so far.
+     *
+     * @return
+     */
+    long getBroadcastFailedWrites();
+
+    /**
+     * Gets the number of broadcast frames dropped because they were the
+     * oldest ones held for a slow listener.
+     *
+     * @return
+     */
+    long getSlowConsumerDroppedOldest();
+
+    /**
+     * Gets the number of broadcast frames dropped because they were the
+     * newest ones for a slow listener.
+     *
+     * @return
+     */
+    long getSlowConsumerDroppedNewest();
+
+    /**
+     * Gets the number of broadcast frames replaced by a newer one of their
+     * category for a slow listener.
+     *
+     * @return
+     */
+    long getSlowConsumerConflated();
+
+    /**
+     * Gets the number of listeners disconnected because they fell too far
+     * behind.
+     *
+     * @return
+     */
+    long getSlowConsumerDisconnects();
+
+    /**
+     * Gets the number of listeners disconnected because they didn't take any
+     * message for too long.
+     *
+     * @return
+     */
+    long getSlowConsumerWriteTimeouts();
+
+    /**
+     * Gets the stalled listeners holding the most bytes.
+     *
+     * @return
+     */
+    String[] getSlowConsumerLaggards();
 }
@@ -2,8 +2,11 @@ package com.fbudassi.neddy;
 
 import com.fbudassi.neddy.config.Config;
 import com.fbudassi.neddy.handler.AddToOpenedChannelsHandler;
+import com.fbudassi.neddy.handler.FlyweightHttpRequestDecoder;
+import com.fbudassi.neddy.handler.HttpPipeliningHandler;
 import com.fbudassi.neddy.handler.IdleKeepAliveHandler;
 import com.fbudassi.neddy.handler.NeddyHandler;
+import com.fbudassi.neddy.ssl.SslContextManager;
 import java.util.concurrent.TimeUnit;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -25,17 +28,30 @@ import org.jboss.netty.util.Timer;
 public class NeddyPipelineFactory implements ChannelPipelineFactory {
 
     private static final int KEEPALIVE_TIMEOUT = Config.getIntValue(Config.KEY_KEEPALIVE_TIMEOUT);
+    private static final int PORT_LISTENERS = Config.getIntValue(Config.KEY_PORT_LISTENERS);
+    private static final boolean FLYWEIGHT_DECODER = Config.getBooleanValue(Config.KEY_DECODER_FLYWEIGHT);
+    private static final int PIPELINING_MAX_REQUESTS = Config.getIntValue(Config.KEY_PIPELINING_MAXREQUESTS);
     private final ChannelHandler idleStateHandler;
     private final Timer timer;
     //Handler constants
+    public static final String HANDLER_SSL = "ssl";
+    public static final String HANDLER_READ_BATCH = "readBatchHandler";
     public static final String HANDLER_DECODER = "decoder";
     public static final String HANDLER_AGGREGATOR = "aggregator";
     public static final String HANDLER_ENCODER = "encoder";
     public static final String HANDLER_CHUNKED_WRITE = "chunkedWriter";
+    public static final String HANDLER_PIPELINING = "pipeliningHandler";
     public static final String HANDLER_ADD_TO_OPENED_CHANNELS = "addToOpenedChannelsHandler";
     public static final String HANDLER__NEDDY = "neddyHandler";
     public static final String HANDLER_IDLE_STATE = "idleStateHandler";
     public static final String HANDLER_IDLE_KEEP_ALIVE = "idleKeepAliveHandler";
+    // Installed by the WebSocket handshaker in place of the HTTP encoder.
+    public static final String HANDLER_WS_DECODER = "wsdecoder";
+    public static final String HANDLER_WS_ENCODER = "wsencoder";
+    public static final String HANDLER_WS_INFLATER = "wsinflater";
+    public static final String HANDLER_WS_EXTENSIONS = "wsExtensionsHandler";
+    public static final String HANDLER_SLOW_CONSUMER = "slowConsumerHandler";
+    public static final String HANDLER_COALESCING = "coalescingHandler";
 
     /**
      * Constructor.
@@ -57,10 +73,28 @@ public class NeddyPipelineFactory implements ChannelPipelineFactory {
     @Override
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = pipeline();
-        pipeline.addLast(HANDLER_DECODER, new HttpRequestDecoder());
+        if (SslContextManager.getInstance().isEnabled()) {
+            // Terminates TLS on both ports, everything below sees cleartext.
+            pipeline.addLast(HANDLER_SSL, SslContextManager.getInstance().newHandler(this.timer));
+        }
+        HttpPipeliningHandler pipeliningHandler = null;
+        if (PIPELINING_MAX_REQUESTS > 0) {
+            // Batches the writes made while every read is handled.
+            pipeliningHandler = new HttpPipeliningHandler(PIPELINING_MAX_REQUESTS);
+            pipeline.addLast(HANDLER_READ_BATCH, pipeliningHandler.getReadBatchHandler());
+        }
+        if (FLYWEIGHT_DECODER) {
+            // Replaced by a HttpRequestDecoder on the speakers port or for any unusual request.
+            pipeline.addLast(HANDLER_DECODER, new FlyweightHttpRequestDecoder(PORT_LISTENERS));
+        } else {
+            pipeline.addLast(HANDLER_DECODER, new HttpRequestDecoder());
+        }
         pipeline.addLast(HANDLER_AGGREGATOR, new HttpChunkAggregator(65536));
         pipeline.addLast(HANDLER_ENCODER, new HttpResponseEncoder());
         pipeline.addLast(HANDLER_CHUNKED_WRITE, new ChunkedWriteHandler());    // Need to be removed when Websocket handshake takes place
+        if (pipeliningHandler != null) {
+            pipeline.addLast(HANDLER_PIPELINING, pipeliningHandler);
+        }
         pipeline.addLast(HANDLER_ADD_TO_OPENED_CHANNELS, new AddToOpenedChannelsHandler());
         pipeline.addLast(HANDLER__NEDDY, new NeddyHandler());
         pipeline.addLast(HANDLER_IDLE_STATE, this.idleStateHandler);            // Need to be removed when Websocket handshake takes place
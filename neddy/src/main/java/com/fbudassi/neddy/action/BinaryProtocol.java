@@ -0,0 +1,132 @@
+package com.fbudassi.neddy.action;
+
+import com.fbudassi.neddy.action.bean.ListenerActionBean;
+import com.fbudassi.neddy.action.bean.ListenerActionBean.ListenerActionEnum;
+import com.fbudassi.neddy.action.bean.ResponseBean;
+import com.fbudassi.neddy.action.bean.ResponseBean.ReasonEnum;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * The compact listener protocol, selected with the neddy.binary WebSocket
+ * subprotocol; Json stays the default. Everything is big-endian, strings are
+ * UTF-8 and nothing is encoded by reflection.
+ *
+ * A listener sends one action per binary frame: action code (1 byte), flags
+ * (1 byte, 1 to coalesce), category length (2 bytes), category and,
+ * optionally, the sequence number to replay the messages after (8 bytes).
+ *
+ * Neddy sends one or more records per binary frame, many for a batch of
+ * coalesced messages: reason code (1 byte), success (1 byte), category id (4
+ * bytes, 0 if none), sequence number (8 bytes, 0 if none), message length (4
+ * bytes) and message. A listener learns the id of a category when it
+ * subscribes to it. Only new messages carry a message; the rest carry the
+ * name of their category, if any, and the category list carries every name
+ * with a 2 bytes length.
+ *
+ * @author fbudassi
+ */
+public final class BinaryProtocol {
+
+    public static final String SUBPROTOCOL = "neddy.binary";
+    public static final String JSON_SUBPROTOCOL = "neddy.json";
+    private static final int FLAG_COALESCE = 0x01;
+    private static final int ACTION_HEADER_LENGTH = 4;
+    private static final int SEQ_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 18;
+
+    /**
+     * Private constructor, it only has static methods.
+     */
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Decodes the action of a listener.
+     *
+     * @param buffer
+     * @return the action, or null if it's malformed
+     */
+    public static ListenerActionBean decodeAction(ChannelBuffer buffer) {
+        if (buffer.readableBytes() < ACTION_HEADER_LENGTH) {
+            return null;
+        }
+        int index = buffer.readerIndex();
+        int code = buffer.getUnsignedByte(index);
+        int flags = buffer.getUnsignedByte(index + 1);
+        int categoryLength = buffer.getUnsignedShort(index + 2);
+        int seqLength = buffer.readableBytes() - ACTION_HEADER_LENGTH - categoryLength;
+        if (seqLength != 0 && seqLength != SEQ_LENGTH) {
+            return null;
+        }
+
+        ListenerActionBean actionBean = new ListenerActionBean();
+        // An unknown code is an invalid action, like an unknown name in Json.
+        actionBean.setAction(String.valueOf(code));
+        for (ListenerActionEnum action : ListenerActionEnum.values()) {
+            if (action.getCode() == code) {
+                actionBean.setAction(action.name());
+            }
+        }
+        actionBean.setCoalesce((flags & FLAG_COALESCE) != 0);
+        if (categoryLength > 0) {
+            actionBean.setCategory(buffer.toString(index + ACTION_HEADER_LENGTH, categoryLength, CharsetUtil.UTF_8));
+        }
+        if (seqLength == SEQ_LENGTH) {
+            actionBean.setSinceSeq(buffer.getLong(index + ACTION_HEADER_LENGTH + categoryLength));
+        }
+        return actionBean;
+    }
+
+    /**
+     * Encodes a response as a record.
+     *
+     * @param response
+     * @return
+     */
+    public static ChannelBuffer encodeResponse(ResponseBean response) {
+        ReasonEnum reason = ReasonEnum.valueOf(response.getReason());
+        byte[] message = getMessage(reason, response);
+        ChannelBuffer record = ChannelBuffers.buffer(RECORD_HEADER_LENGTH + message.length);
+        record.writeByte(reason.getCode());
+        record.writeByte(response.isSuccess() ? 1 : 0);
+        record.writeInt(response.getCategoryId());
+        record.writeLong(response.getSeq() == null ? 0 : response.getSeq());
+        record.writeInt(message.length);
+        record.writeBytes(message);
+        return record;
+    }
+
+    /**
+     * @param reason
+     * @param response
+     * @return the message of the record
+     */
+    private static byte[] getMessage(ReasonEnum reason, ResponseBean response) {
+        switch (reason) {
+            case MESSAGE_NEW:
+                return toBytes(response.getMessage());
+            case MESSAGE_CATEGORY_LIST:
+                ChannelBuffer names = ChannelBuffers.dynamicBuffer();
+                for (String name : response.getCategories()) {
+                    byte[] bytes = toBytes(name);
+                    names.writeShort(bytes.length);
+                    names.writeBytes(bytes);
+                }
+                byte[] list = new byte[names.readableBytes()];
+                names.readBytes(list);
+                return list;
+            default:
+                return toBytes(response.getCategory());
+        }
+    }
+
+    /**
+     * @param string
+     * @return its UTF-8 bytes, none if it's null
+     */
+    private static byte[] toBytes(String string) {
+        return string == null ? new byte[0] : string.getBytes(CharsetUtil.UTF_8);
+    }
+}
@@ -1,5 +1,6 @@
 package com.fbudassi.neddy.action;
 
+import com.fbudassi.neddy.NeddyPipelineFactory;
 import com.fbudassi.neddy.action.bean.ListenerActionBean;
 import com.fbudassi.neddy.action.bean.ListenerActionBean.ListenerActionEnum;
 import com.fbudassi.neddy.action.bean.ResponseBean;
@@ -8,11 +9,17 @@ import com.fbudassi.neddy.category.CategoryManager;
 import com.fbudassi.neddy.category.ChannelGroupManager;
 import com.fbudassi.neddy.category.exception.CategoryBadNameException;
 import com.fbudassi.neddy.category.exception.CategoryNonExistentException;
+import com.fbudassi.neddy.category.exception.CategoryReplayUnavailableException;
+import com.fbudassi.neddy.handler.CoalescingHandler;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import org.apache.commons.lang3.StringUtils;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +51,28 @@ public class ListenerActionHandler {
 
             // Deserialize request
             ListenerActionBean requestBean = gson.fromJson(request, ListenerActionBean.class);
+            return handleRequest(requestBean, channel);
+        } catch (JsonSyntaxException jse) {
+            // Json badly formatted.
+            logger.debug("Error processing request.", jse);
+            return ResponseBean.getUnsuccessfulResponse(ReasonEnum.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Handles a Listener action, already deserialized from Json or from the
+     * binary protocol, and returns a bean with the response.
+     *
+     * @param requestBean null if the request is malformed
+     * @param channel
+     * @return
+     */
+    public static ResponseBean handleRequest(ListenerActionBean requestBean, Channel channel) {
+        try {
+            if (requestBean == null) {
+                logger.debug("Request is malformed.");
+                return ResponseBean.getUnsuccessfulResponse(ReasonEnum.BAD_REQUEST);
+            }
 
             // Get valid action.
             ListenerActionEnum action;
@@ -73,10 +102,6 @@ public class ListenerActionHandler {
                     // This point should be unreachable.
                     return ResponseBean.getUnsuccessfulResponse(ReasonEnum.INVALID_ACTION);
             }
-        } catch (JsonSyntaxException jse) {
-            // Json badly formatted.
-            logger.debug("Error processing request.", jse);
-            return ResponseBean.getUnsuccessfulResponse(ReasonEnum.BAD_REQUEST);
         } catch (Exception e) {
             logger.error("Error processing request.", e);
             return ResponseBean.getUnsuccessfulResponse(ReasonEnum.INTERNAL_ERROR);
@@ -84,7 +109,9 @@ public class ListenerActionHandler {
     }
 
     /**
-     * Subscribes a listener to a specific category.
+     * Subscribes a listener to a specific category. The messages it missed,
+     * if it asks for them, go in the backlog of the response, written after
+     * it.
      *
      * @param actionBean
      * @param channel
@@ -92,11 +119,18 @@ public class ListenerActionHandler {
      */
     private static ResponseBean subscribe(ListenerActionBean actionBean, Channel channel) {
         try {
-            ChannelGroupManager.getInstance().addListenerToCategory(channel, actionBean.getCategory());
+            List<SharedTextWebSocketFrame> backlog = new ArrayList<SharedTextWebSocketFrame>();
+            long lastSeq = ChannelGroupManager.getInstance().addListenerToCategory(channel, actionBean.getCategory(),
+                    actionBean.getSinceSeq(), backlog);
+            setCoalescing(channel, actionBean.getCategory(), actionBean.isCoalesce());
             ResponseBean responseBean = new ResponseBean();
             responseBean.setSuccess(true);
             responseBean.setReason(ReasonEnum.MESSAGE_CATEGORY_SUBSCRIBED.toString());
             responseBean.setMessage(String.format(ReasonEnum.MESSAGE_CATEGORY_SUBSCRIBED.getMessage(), actionBean.getCategory()));
+            responseBean.setCategory(actionBean.getCategory());
+            responseBean.setCategoryId(CategoryManager.getInstance().getCategoryId(actionBean.getCategory()));
+            responseBean.setSeq(lastSeq);
+            responseBean.setBacklog(backlog);
             return responseBean;
         } catch (CategoryBadNameException cbnex) {
             logger.info("Bad category name: {}", actionBean.getCategory());
@@ -104,6 +138,12 @@ public class ListenerActionHandler {
         } catch (CategoryNonExistentException cneex) {
             logger.info("Category doesn't exist: {}", actionBean.getCategory());
             return ResponseBean.getUnsuccessfulResponse(ReasonEnum.CATEGORY_NON_EXISTENT);
+        } catch (CategoryReplayUnavailableException cruex) {
+            logger.info("Messages of category {} since {} not available", actionBean.getCategory(), actionBean.getSinceSeq());
+            ResponseBean responseBean = ResponseBean.getUnsuccessfulResponse(ReasonEnum.CATEGORY_REPLAY_UNAVAILABLE);
+            responseBean.setCategory(actionBean.getCategory());
+            responseBean.setCategoryId(CategoryManager.getInstance().getCategoryId(actionBean.getCategory()));
+            return responseBean;
         }
 
     }
@@ -118,10 +158,13 @@ public class ListenerActionHandler {
     private static ResponseBean unsubscribe(ListenerActionBean actionBean, Channel channel) {
         try {
             ChannelGroupManager.getInstance().removeListenerFromCategory(channel, actionBean.getCategory());
+            setCoalescing(channel, actionBean.getCategory(), false);
             ResponseBean responseBean = new ResponseBean();
             responseBean.setSuccess(true);
             responseBean.setReason(ReasonEnum.MESSAGE_CATEGORY_UNSUBSCRIBED.toString());
             responseBean.setMessage(String.format(ReasonEnum.MESSAGE_CATEGORY_UNSUBSCRIBED.getMessage(), actionBean.getCategory()));
+            responseBean.setCategory(actionBean.getCategory());
+            responseBean.setCategoryId(CategoryManager.getInstance().getCategoryId(actionBean.getCategory()));
             return responseBean;
         } catch (CategoryBadNameException cbnex) {
             logger.info("Bad category name: {}", actionBean.getCategory());
@@ -139,12 +182,13 @@ public class ListenerActionHandler {
      */
     private static ResponseBean getCategoryList() {
         Gson gson = new Gson();
-        Set<String> categories = CategoryManager.getInstance().getCategoryList();
+        List<String> categories = new ArrayList<String>(CategoryManager.getInstance().getCategoryList());
         String message = gson.toJson(categories);
         ResponseBean responseBean = new ResponseBean();
         responseBean.setSuccess(true);
         responseBean.setReason(ReasonEnum.MESSAGE_CATEGORY_LIST.toString());
         responseBean.setMessage(message);
+        responseBean.setCategories(categories);
         return responseBean;
     }
 
@@ -161,6 +205,7 @@ public class ListenerActionHandler {
         Set<String> categories = CategoryManager.getInstance().getCategoryList();
         for (String category : categories) {
             ChannelGroupManager.getInstance().removeListenerFromCategory(channel, category);
+            setCoalescing(channel, category, false);
         }
         ResponseBean responseBean = new ResponseBean();
         responseBean.setSuccess(true);
@@ -168,4 +213,26 @@ public class ListenerActionHandler {
         responseBean.setMessage(ReasonEnum.MESSAGE_CATEGORY_UNSUBSCRIBED_ALL.getMessage());
         return responseBean;
     }
+
+    /**
+     * Starts or stops coalescing the messages of a category for a listener.
+     * The coalescing handler is added to its pipeline the first time.
+     *
+     * @param channel
+     * @param category
+     * @param coalesce
+     */
+    private static void setCoalescing(Channel channel, String category, boolean coalesce) {
+        ChannelPipeline pipeline = channel.getPipeline();
+        CoalescingHandler handler = (CoalescingHandler) pipeline.get(NeddyPipelineFactory.HANDLER_COALESCING);
+        if (coalesce) {
+            if (handler == null) {
+                handler = new CoalescingHandler();
+                pipeline.addLast(NeddyPipelineFactory.HANDLER_COALESCING, handler);
+            }
+            handler.addCategory(category);
+        } else if (handler != null) {
+            handler.removeCategory(category);
+        }
+    }
 }
@@ -4,15 +4,16 @@ import com.fbudassi.neddy.action.bean.ResponseBean;
 import com.fbudassi.neddy.action.bean.ResponseBean.ReasonEnum;
 import com.fbudassi.neddy.action.bean.SpeakerActionBean;
 import com.fbudassi.neddy.action.bean.SpeakerActionBean.SpeakerActionEnum;
+import com.fbudassi.neddy.category.BroadcastGroup;
 import com.fbudassi.neddy.category.CategoryManager;
 import com.fbudassi.neddy.category.ChannelGroupManager;
+import com.fbudassi.neddy.category.ReplayRing;
 import com.fbudassi.neddy.category.exception.CategoryAlreadyExistsException;
 import com.fbudassi.neddy.category.exception.CategoryBadNameException;
 import com.fbudassi.neddy.handler.expert.WebSocketExpert;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import org.apache.commons.lang3.StringUtils;
-import org.jboss.netty.channel.group.ChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -78,11 +79,12 @@ public class SpeakerActionHandler {
     private static ResponseBean addCategory(SpeakerActionBean actionBean) {
         try {
             // Try to add the new category.
-            CategoryManager.getInstance().addCategory(actionBean.getCategory());
+            CategoryManager.getInstance().addCategory(actionBean.getCategory(), actionBean.isCoalesce());
 
             // Send a New Category notification to all the listeners.
             sendCategoryEventMessage(ChannelGroupManager.getInstance().getAllChannels(),
-                        ReasonEnum.MESSAGE_CATEGORY_ADDED, actionBean.getCategory());
+                        ReasonEnum.MESSAGE_CATEGORY_ADDED, actionBean.getCategory(),
+                        CategoryManager.getInstance().getCategoryId(actionBean.getCategory()));
 
             return ResponseBean.getSuccessfulResponse();
         } catch (CategoryAlreadyExistsException caeex) {
@@ -102,15 +104,16 @@ public class SpeakerActionHandler {
      */
     private static ResponseBean removeCategory(SpeakerActionBean actionBean) {
         try {
-            // Try to remove the category.
-            ChannelGroup group = CategoryManager.getInstance().removeCategory(actionBean.getCategory());
+            // Try to remove the category, whose id is gone with it.
+            int categoryId = CategoryManager.getInstance().getCategoryId(actionBean.getCategory());
+            BroadcastGroup group = CategoryManager.getInstance().removeCategory(actionBean.getCategory());
             if (group == null) {
                 // Category doesn't exist.
                 return ResponseBean.getUnsuccessfulResponse(ReasonEnum.CATEGORY_NON_EXISTENT);
             } else {
                 // Send a notification to all the WebSocket channels.
                 sendCategoryEventMessage(ChannelGroupManager.getInstance().getAllChannels(),
-                        ReasonEnum.MESSAGE_CATEGORY_REMOVED, actionBean.getCategory());
+                        ReasonEnum.MESSAGE_CATEGORY_REMOVED, actionBean.getCategory(), categoryId);
             }
             return ResponseBean.getSuccessfulResponse();
         } catch (CategoryBadNameException cbnex) {
@@ -132,9 +135,14 @@ public class SpeakerActionHandler {
                 return ResponseBean.getUnsuccessfulResponse(ReasonEnum.CATEGORY_NON_EXISTENT);
             }
 
-            ChannelGroup group = CategoryManager.getInstance().getCategory(actionBean.getCategory());
+            // The ring numbers the message, keeps it for a replay and sends it.
+            ReplayRing ring = CategoryManager.getInstance().getReplayRing(actionBean.getCategory());
+            if (ring == null) {
+                return ResponseBean.getUnsuccessfulResponse(ReasonEnum.CATEGORY_NON_EXISTENT);
+            }
             ResponseBean responseBean = ResponseBean.getNewMessageResponse(actionBean.getMessage(), actionBean.getCategory());
-            sendMessage(group, responseBean);
+            responseBean.setCategoryId(CategoryManager.getInstance().getCategoryId(actionBean.getCategory()));
+            ring.publish(responseBean);
             return ResponseBean.getSuccessfulResponse();
         } catch (CategoryBadNameException cbnex) {
             logger.info("Bad category name: {}", actionBean.getCategory());
@@ -159,8 +167,12 @@ public class SpeakerActionHandler {
      * as parameter.
      *
      * @param group
+     * @param reasonEnum
+     * @param category
+     * @param categoryId
      */
-    private static void sendCategoryEventMessage(ChannelGroup group, ReasonEnum reasonEnum, String category) {
+    private static void sendCategoryEventMessage(BroadcastGroup group, ReasonEnum reasonEnum, String category,
+            int categoryId) {
         // Only allow some ReasonEnum values.
         if (reasonEnum != ReasonEnum.MESSAGE_CATEGORY_ADDED && reasonEnum != ReasonEnum.MESSAGE_CATEGORY_REMOVED) {
             throw new UnsupportedOperationException();
@@ -172,6 +184,7 @@ public class SpeakerActionHandler {
         responseBean.setReason(reasonEnum.toString());
         responseBean.setMessage(String.format(reasonEnum.getMessage(), category));
         responseBean.setCategory(category);
+        responseBean.setCategoryId(categoryId);
         sendMessage(group, responseBean);
     }
 
@@ -181,8 +194,7 @@ public class SpeakerActionHandler {
      * @param group
      * @param message
      */
-    private static void sendMessage(ChannelGroup group, ResponseBean responseBean) {
-        Gson gson = new Gson();
-        group.write(WebSocketExpert.getTextWebSocketFrame(gson.toJson(responseBean)));
+    private static void sendMessage(BroadcastGroup group, ResponseBean responseBean) {
+        group.write(WebSocketExpert.getSharedTextWebSocketFrame(responseBean));
     }
 }
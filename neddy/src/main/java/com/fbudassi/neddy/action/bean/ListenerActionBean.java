@@ -13,13 +13,32 @@ public class ListenerActionBean {
     private String action;
     @SerializedName("category")
     private String category;
+    @SerializedName("coalesce")
+    private boolean coalesce;
+    @SerializedName("sinceSeq")
+    private Long sinceSeq;
 
     /**
      * Allowed actions for a Listener request.
      */
     public enum ListenerActionEnum {
 
-        SUBSCRIBE, UNSUBSCRIBE, GET_CATEGORIES, UNSUBSCRIBE_ALL
+        SUBSCRIBE(1), UNSUBSCRIBE(2), GET_CATEGORIES(3), UNSUBSCRIBE_ALL(4);
+        // Numeric code of the action in the binary protocol.
+        private final int code;
+
+        ListenerActionEnum(int code) {
+            this.code = code;
+        }
+
+        /**
+         * A getter for the action code of the binary protocol.
+         *
+         * @return
+         */
+        public int getCode() {
+            return code;
+        }
     }
 
     /**
@@ -49,4 +68,33 @@ public class ListenerActionBean {
     public void setCategory(String category) {
         this.category = category;
     }
+
+    /**
+     * @return true if the messages have to be coalesced
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * @param coalesce the coalesce to set
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * @return the sequence number of the last message received, to get the
+     * ones after it replayed; null to get only the new ones
+     */
+    public Long getSinceSeq() {
+        return sinceSeq;
+    }
+
+    /**
+     * @param sinceSeq the sinceSeq to set
+     */
+    public void setSinceSeq(Long sinceSeq) {
+        this.sinceSeq = sinceSeq;
+    }
 }
@@ -1,6 +1,8 @@
 package com.fbudassi.neddy.action.bean;
 
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
 import com.google.gson.annotations.SerializedName;
+import java.util.List;
 
 /**
  * Default fields for a Neddy answer to both Listeners and Pushers.
@@ -17,6 +19,14 @@ public class ResponseBean {
     private String message;
     @SerializedName("category")
     private String category;
+    @SerializedName("seq")
+    private Long seq;
+    // Only in the binary protocol, which identifies categories by number.
+    private transient int categoryId;
+    // Messages replayed to a listener right after this response.
+    private transient List<SharedTextWebSocketFrame> backlog;
+    // The names in the message of a category list, for the binary protocol.
+    private transient List<String> categories;
 
     /**
      * @return the category
@@ -32,6 +42,65 @@ public class ResponseBean {
         this.category = category;
     }
 
+    /**
+     * @return the sequence number of the message in its category, or of the
+     * last message of the category when subscribing; null if there's none
+     */
+    public Long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @param seq the seq to set
+     */
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * @return the id of the category, 0 if there's none
+     */
+    public int getCategoryId() {
+        return categoryId;
+    }
+
+    /**
+     * @param categoryId the categoryId to set
+     */
+    public void setCategoryId(int categoryId) {
+        this.categoryId = categoryId;
+    }
+
+    /**
+     * @return the messages to write after the response, in order; null if
+     * there are none
+     */
+    public List<SharedTextWebSocketFrame> getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @param backlog the backlog to set
+     */
+    public void setBacklog(List<SharedTextWebSocketFrame> backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * @return the names of the categories of a category list, null if it
+     * isn't one
+     */
+    public List<String> getCategories() {
+        return categories;
+    }
+
+    /**
+     * @param categories the categories to set
+     */
+    public void setCategories(List<String> categories) {
+        this.categories = categories;
+    }
+
     /**
      * Enumeration with all the possible errors when the request is being
      * processed.
@@ -39,28 +108,41 @@ public class ResponseBean {
     public enum ReasonEnum {
 
         // Error Reasons.
-        OK("Operation successful."),
-        BAD_REQUEST("Request is incorrectly formatted or inconsistent."),
-        INTERNAL_ERROR("Internal server error."),
-        INVALID_ACTION("The action is invalid or it doesn't exists."),
-        CATEGORY_BAD_NAME("The name of the category doesn't fit to the requirements"),
-        CATEGORY_NON_EXISTENT("Selected category doesn't exist."),
-        CATEGORY_ALREADY_EXISTS("The category that you're trying to add already exists in the server"),
+        OK(0, "Operation successful."),
+        BAD_REQUEST(1, "Request is incorrectly formatted or inconsistent."),
+        INTERNAL_ERROR(2, "Internal server error."),
+        INVALID_ACTION(3, "The action is invalid or it doesn't exists."),
+        CATEGORY_BAD_NAME(4, "The name of the category doesn't fit to the requirements"),
+        CATEGORY_NON_EXISTENT(5, "Selected category doesn't exist."),
+        CATEGORY_ALREADY_EXISTS(6, "The category that you're trying to add already exists in the server"),
+        CATEGORY_REPLAY_UNAVAILABLE(7, "The messages since the sequence number requested are no longer available."),
         // Message Reasons.
-        MESSAGE_NEW(""),
-        MESSAGE_CATEGORY_REMOVED("Category %s was removed."),
-        MESSAGE_CATEGORY_ADDED("Category %s was added."),
-        MESSAGE_CATEGORY_SUBSCRIBED("Subscribed to category %s."),
-        MESSAGE_CATEGORY_UNSUBSCRIBED("Unsubscribed from category %s."),
-        MESSAGE_CATEGORY_UNSUBSCRIBED_ALL("Unsubscribed from all categories."),
-        MESSAGE_CATEGORY_LIST("");
+        MESSAGE_NEW(16, ""),
+        MESSAGE_CATEGORY_REMOVED(17, "Category %s was removed."),
+        MESSAGE_CATEGORY_ADDED(18, "Category %s was added."),
+        MESSAGE_CATEGORY_SUBSCRIBED(19, "Subscribed to category %s."),
+        MESSAGE_CATEGORY_UNSUBSCRIBED(20, "Unsubscribed from category %s."),
+        MESSAGE_CATEGORY_UNSUBSCRIBED_ALL(21, "Unsubscribed from all categories."),
+        MESSAGE_CATEGORY_LIST(22, "");
         // Variable to store the error message once an enum is instantiated.
         private final String message;
+        // Numeric code of the reason in the binary protocol.
+        private final int code;
 
-        ReasonEnum(String messsage) {
+        ReasonEnum(int code, String messsage) {
+            this.code = code;
             this.message = messsage;
         }
 
+        /**
+         * A getter for the reason code of the binary protocol.
+         *
+         * @return
+         */
+        public int getCode() {
+            return code;
+        }
+
         /**
          * A getter for the reason message.
          *
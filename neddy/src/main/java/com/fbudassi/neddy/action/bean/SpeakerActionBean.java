@@ -13,6 +13,8 @@ public class SpeakerActionBean {
     private String category;
     @SerializedName("message")
     private String message;
+    @SerializedName("coalesce")
+    private boolean coalesce;
 
     /**
      * Allowed actions for a Speaker request.
@@ -49,4 +51,18 @@ public class SpeakerActionBean {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    /**
+     * @return true if the messages have to be coalesced
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * @param coalesce the coalesce to set
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
 }
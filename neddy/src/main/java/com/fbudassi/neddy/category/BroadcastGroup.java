@@ -0,0 +1,483 @@
+package com.fbudassi.neddy.category;
+
+import com.fbudassi.neddy.handler.DroppedWriteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.socket.Worker;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Group of channels made to write the same message to all of them. Unlike a
+ * DefaultChannelGroup, a write doesn't create a future for every channel nor
+ * a group future with a map of them, since nobody waits for a broadcast:
+ * every member has a future of its own, created once and never done, that
+ * only counts the writes that fail.
+ *
+ * The channels are sharded by the NIO worker that owns them, and a shard is
+ * only touched by its worker: joins, leaves and writes are tasks run in its
+ * I/O thread. So a broadcast hands a single task to every worker, which then
+ * writes to its channels directly, in parallel with the other workers and
+ * without handing every write over to another thread.
+ *
+ * The messages of a category carry a sequence number. A channel that joins
+ * after getting the messages up to a number, replayed to it, skips any write
+ * of those numbers still on its way.
+ *
+ * @author fbudassi
+ */
+public class BroadcastGroup {
+
+    private static final int INITIAL_SHARD_CAPACITY = 16;
+    private static final Shard[] NO_SHARDS = new Shard[0];
+    // Failed writes of all the groups.
+    private static final AtomicLong totalFailedWrites = new AtomicLong();
+    private final String name;
+    private volatile Shard[] shards = NO_SHARDS;
+    private final AtomicLong failedWrites = new AtomicLong();
+    // Removes the channels from the group when they are closed.
+    private final ChannelFutureListener remover = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            remove(future.getChannel());
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     */
+    public BroadcastGroup(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the group
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a channel to the group, if it's not there already. It leaves the
+     * group by itself when it's closed. Called from the I/O thread of the
+     * channel, it's added before returning.
+     *
+     * @param channel
+     */
+    public void add(Channel channel) {
+        add(channel, 0);
+    }
+
+    /**
+     * Adds a channel to the group, if it's not there already. It won't get
+     * the writes of the messages up to the sequence number passed as
+     * parameter, which are replayed to it or it already got. Called from the
+     * I/O thread of the channel, it's added before returning, and the writes
+     * after it wait until the current event is handled.
+     *
+     * @param channel
+     * @param seq
+     */
+    public void add(final Channel channel, final long seq) {
+        final Shard shard = getShard(channel);
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (shard.add(channel, seq)) {
+                    channel.getCloseFuture().addListener(remover);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes a channel from the group. Called from the I/O thread of the
+     * channel, it's removed before returning.
+     *
+     * @param channel
+     */
+    public void remove(final Channel channel) {
+        final Shard shard = getShard(channel);
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (shard.remove(channel)) {
+                    channel.getCloseFuture().removeListener(remover);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of channels in the group
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a message to all the channels of the group, from the I/O threads
+     * that own them. The message must not be modified by the handlers of the
+     * channels, except buffers, which every channel gets a duplicate of.
+     *
+     * @param message
+     */
+    public void write(Object message) {
+        write(message, 0);
+    }
+
+    /**
+     * Writes a message of a category to all the channels of the group, but
+     * the ones that joined after getting it.
+     *
+     * @param message
+     * @param seq the sequence number of the message, or of the last one of a
+     * batch, 0 if it has none
+     */
+    public void write(final Object message, final long seq) {
+        for (final Shard shard : shards) {
+            shard.execute(new Runnable() {
+                @Override
+                public void run() {
+                    shard.write(message, seq);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of writes to the group that failed
+     */
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /**
+     * @return the number of writes to any group that failed
+     */
+    public static long getTotalFailedWrites() {
+        return totalFailedWrites.get();
+    }
+
+    /**
+     * Gets the shard of the worker of a channel, creating it the first time.
+     *
+     * @param channel
+     * @return
+     */
+    private Shard getShard(Channel channel) {
+        Worker worker = channel instanceof NioSocketChannel ? ((NioSocketChannel) channel).getWorker() : null;
+        Shard shard = findShard(shards, worker);
+        if (shard != null) {
+            return shard;
+        }
+
+        synchronized (this) {
+            Shard[] current = shards;
+            shard = findShard(current, worker);
+            if (shard == null) {
+                shard = new Shard(worker);
+                Shard[] newShards = new Shard[current.length + 1];
+                System.arraycopy(current, 0, newShards, 0, current.length);
+                newShards[current.length] = shard;
+                shards = newShards;
+            }
+            return shard;
+        }
+    }
+
+    /**
+     * @param shards
+     * @param worker
+     * @return the shard of the worker, or null
+     */
+    private static Shard findShard(Shard[] shards, Worker worker) {
+        for (Shard shard : shards) {
+            if (shard.worker == worker) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The channels of the group owned by a worker. Apart from the size, it's
+     * only used from the I/O thread of the worker, so the members are a plain
+     * array, with an index to find them by channel.
+     */
+    private class Shard {
+
+        // The worker of the channels, null for channels without one.
+        private final Worker worker;
+        private Member[] members = new Member[INITIAL_SHARD_CAPACITY];
+        private final Map<Channel, Member> index = new HashMap<Channel, Member>();
+        private volatile int size;
+
+        /**
+         * Constructor.
+         *
+         * @param worker
+         */
+        Shard(Worker worker) {
+            this.worker = worker;
+        }
+
+        /**
+         * Runs a task in the I/O thread of the worker, right away if it's the
+         * current thread. Without a worker, it runs in the current thread.
+         *
+         * @param task
+         */
+        void execute(Runnable task) {
+            if (worker != null) {
+                worker.executeInIoThread(task);
+            } else {
+                synchronized (this) {
+                    task.run();
+                }
+            }
+        }
+
+        /**
+         * @param channel
+         * @param seq
+         * @return false if the channel was already a member
+         */
+        boolean add(Channel channel, long seq) {
+            if (index.containsKey(channel)) {
+                return false;
+            }
+            if (size == members.length) {
+                Member[] newMembers = new Member[members.length * 2];
+                System.arraycopy(members, 0, newMembers, 0, size);
+                members = newMembers;
+            }
+            Member member = new Member(channel, size, seq);
+            members[size] = member;
+            index.put(channel, member);
+            size++;
+            return true;
+        }
+
+        /**
+         * Removes a channel, moving the last member to its place.
+         *
+         * @param channel
+         * @return true if the channel was in the shard
+         */
+        boolean remove(Channel channel) {
+            Member member = index.remove(channel);
+            if (member == null) {
+                return false;
+            }
+            int last = size - 1;
+            Member moved = members[last];
+            members[member.position] = moved;
+            moved.position = member.position;
+            members[last] = null;
+            size = last;
+            return true;
+        }
+
+        /**
+         * Writes a message to all the channels of the shard. It goes
+         * backwards, since a failed write can close a channel and remove it
+         * right away, moving an already written member to its place.
+         *
+         * @param message
+         * @param seq
+         */
+        void write(Object message, long seq) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (i < size && (seq == 0 || seq > members[i].joinedAtSeq)) {
+                    members[i].write(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * A channel of the group.
+     */
+    private class Member {
+
+        private final Channel channel;
+        // The future of all the writes to the channel.
+        private final WriteFuture future;
+        // Position in the members array of its shard.
+        private int position;
+        // Sequence number of the last message it got before joining.
+        private final long joinedAtSeq;
+
+        /**
+         * Constructor.
+         *
+         * @param channel
+         * @param position
+         * @param joinedAtSeq
+         */
+        Member(Channel channel, int position, long joinedAtSeq) {
+            this.channel = channel;
+            this.future = new WriteFuture(channel);
+            this.position = position;
+            this.joinedAtSeq = joinedAtSeq;
+        }
+
+        /**
+         * Sends the message down the pipeline of the channel.
+         *
+         * @param message
+         */
+        void write(Object message) {
+            if (message instanceof ChannelBuffer) {
+                message = ((ChannelBuffer) message).duplicate();
+            }
+            channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, future, message, null));
+        }
+    }
+
+    /**
+     * The future of all the broadcast writes to a channel. Nobody waits for a
+     * broadcast, so it's never done and it can be used again and again: it
+     * just counts the failures the channel reports, but the writes dropped
+     * on purpose by the slow consumer policy. Listening to it or waiting for
+     * it is a mistake, it would never happen, so it fails.
+     */
+    private class WriteFuture implements ChannelFuture {
+
+        private static final String VOID_FUTURE = "The writes of a broadcast can't be listened to or waited for.";
+        private final Channel channel;
+
+        /**
+         * Constructor.
+         *
+         * @param channel
+         */
+        WriteFuture(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Channel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isSuccess() {
+            return false;
+        }
+
+        @Override
+        public Throwable getCause() {
+            return null;
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean setSuccess() {
+            return true;
+        }
+
+        /**
+         * Counts a failed write, unless it was dropped on purpose.
+         *
+         * @param cause
+         * @return
+         */
+        @Override
+        public boolean setFailure(Throwable cause) {
+            if (!(cause instanceof DroppedWriteException)) {
+                failedWrites.incrementAndGet();
+                totalFailedWrites.incrementAndGet();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean setProgress(long amount, long current, long total) {
+            return false;
+        }
+
+        @Override
+        public void addListener(ChannelFutureListener listener) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public void removeListener(ChannelFutureListener listener) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        @Deprecated
+        public ChannelFuture rethrowIfFailed() {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public ChannelFuture sync() {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public ChannelFuture syncUninterruptibly() {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public ChannelFuture await() {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public ChannelFuture awaitUninterruptibly() {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public boolean await(long timeoutMillis) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public boolean awaitUninterruptibly(long timeout, TimeUnit unit) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+
+        @Override
+        public boolean awaitUninterruptibly(long timeoutMillis) {
+            throw new IllegalStateException(VOID_FUTURE);
+        }
+    }
+}
@@ -5,8 +5,7 @@ import com.fbudassi.neddy.category.exception.CategoryBadNameException;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.channel.group.DefaultChannelGroup;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * It manages all the categories added and their relations with subscribed
@@ -18,13 +17,18 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 public class CategoryManager {
 
     private static CategoryManager INSTANCE = new CategoryManager();
-    private Map<String, ChannelGroup> categoryMap;
+    private Map<String, BroadcastGroup> categoryMap;
+    private Map<String, ReplayRing> replayMap;
+    private Map<String, Integer> categoryIdMap;
+    private final AtomicInteger lastCategoryId = new AtomicInteger();
 
     /**
      * Private constructor due to Singleton pattern usage.
      */
     private CategoryManager() {
-        categoryMap = new ConcurrentHashMap<String, ChannelGroup>();
+        categoryMap = new ConcurrentHashMap<String, BroadcastGroup>();
+        replayMap = new ConcurrentHashMap<String, ReplayRing>();
+        categoryIdMap = new ConcurrentHashMap<String, Integer>();
     }
 
     /**
@@ -48,13 +52,17 @@ public class CategoryManager {
     }
 
     /**
-     * Adds a new category with an empty ChannelGroup to the Category Map.
+     * Adds a new category with an empty BroadcastGroup to the Category Map.
+     * The messages of a coalesced category are sent to its listeners in
+     * batches. Every category gets a new id, for the binary protocol, and a
+     * ring with its recent messages.
      *
      * @param category
+     * @param coalesce
      * @throws CategoryAlreadyExistsException
      * @throws CategoryBadNameException
      */
-    public void addCategory(String category) throws CategoryAlreadyExistsException, CategoryBadNameException {
+    public void addCategory(String category, boolean coalesce) throws CategoryAlreadyExistsException, CategoryBadNameException {
         // First check for category name validity.
         if (isNotValidName(category)) {
             throw new CategoryBadNameException();
@@ -62,7 +70,11 @@ public class CategoryManager {
 
         // Then try to add the category if it doesn't exist.
         if (!categoryExists(category)) {
-            categoryMap.put(category, new DefaultChannelGroup(category));
+            BroadcastGroup group = new BroadcastGroup(category);
+            int categoryId = lastCategoryId.incrementAndGet();
+            replayMap.put(category, new ReplayRing(group, categoryId, coalesce));
+            categoryIdMap.put(category, categoryId);
+            categoryMap.put(category, group);
         } else {
             throw new CategoryAlreadyExistsException();
         }
@@ -70,18 +82,24 @@ public class CategoryManager {
 
     /**
      * Removes an existing from the Category Map. It returns null if the
-     * category doesn't exist, or the ChannelGroup if it existed.
+     * category doesn't exist, or the BroadcastGroup if it existed.
      *
      * @param category
      * @return
      * @throws CategoryBadNameException
      */
-    public ChannelGroup removeCategory(String category) throws CategoryBadNameException {
+    public BroadcastGroup removeCategory(String category) throws CategoryBadNameException {
         // First check for category name validity.
         if (isNotValidName(category)) {
             throw new CategoryBadNameException();
         }
 
+        // The last messages of a coalesced category are still sent.
+        ReplayRing ring = replayMap.remove(category);
+        if (ring != null) {
+            ring.flush();
+        }
+        categoryIdMap.remove(category);
         return categoryMap.remove(category);
     }
 
@@ -95,14 +113,14 @@ public class CategoryManager {
     }
 
     /**
-     * Gets the ChannelGroup associated to the category passed as parameter. It
+     * Gets the BroadcastGroup associated to the category passed as parameter. It
      * returns null of the category doesn't exist.
      *
      * @param category
      * @return
      * @throws CategoryBadNameException
      */
-    public ChannelGroup getCategory(String category) throws CategoryBadNameException {
+    public BroadcastGroup getCategory(String category) throws CategoryBadNameException {
         // First check for category name validity.
         if (isNotValidName(category)) {
             throw new CategoryBadNameException();
@@ -111,6 +129,29 @@ public class CategoryManager {
         return categoryMap.get(category);
     }
 
+    /**
+     * Gets the ring that numbers, keeps and sends the messages of a category.
+     * It returns null if the category doesn't exist.
+     *
+     * @param category
+     * @return
+     */
+    public ReplayRing getReplayRing(String category) {
+        return replayMap.get(category);
+    }
+
+    /**
+     * Gets the id of a category, which identifies it in the binary protocol.
+     * It returns 0 if the category doesn't exist.
+     *
+     * @param category
+     * @return
+     */
+    public int getCategoryId(String category) {
+        Integer categoryId = category == null ? null : categoryIdMap.get(category);
+        return categoryId == null ? 0 : categoryId;
+    }
+
     /**
      * Checks for a category existence.
      *
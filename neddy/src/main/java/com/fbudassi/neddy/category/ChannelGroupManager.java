@@ -2,9 +2,10 @@ package com.fbudassi.neddy.category;
 
 import com.fbudassi.neddy.category.exception.CategoryBadNameException;
 import com.fbudassi.neddy.category.exception.CategoryNonExistentException;
+import com.fbudassi.neddy.category.exception.CategoryReplayUnavailableException;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
+import java.util.List;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.group.ChannelGroup;
-import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 /**
  * It manages the relations between the WebSocket channels and the categories
@@ -16,13 +17,13 @@ import org.jboss.netty.channel.group.DefaultChannelGroup;
 public class ChannelGroupManager {
 
     private static ChannelGroupManager INSTANCE = new ChannelGroupManager();
-    private ChannelGroup allChannels;
+    private BroadcastGroup allChannels;
 
     /**
      * Private constructor due to Singleton pattern usage.
      */
     private ChannelGroupManager() {
-        allChannels = new DefaultChannelGroup("all-listeners");
+        allChannels = new BroadcastGroup("all-listeners");
     }
 
     /**
@@ -48,17 +49,27 @@ public class ChannelGroupManager {
     /**
      * Adds a new listener to a category. If the listener is already subscribed
      * to the category, nothing happens. If the category doesn't exist, an
-     * exception is thrown.
+     * exception is thrown. The messages after sinceSeq, if any, are added to
+     * the backlog, to be written to the listener before the new ones.
      *
      * @param channel
      * @param category
+     * @param sinceSeq the sequence number of the last message the listener
+     * got, null if none
+     * @param backlog where the messages to replay are added
+     * @return the sequence number of the last message of the category
      * @throws CategoryNonExistentException
      * @throws CategoryBadNameException
+     * @throws CategoryReplayUnavailableException
      */
-    public void addListenerToCategory(Channel channel, String category) throws CategoryNonExistentException, CategoryBadNameException {
-        if (CategoryManager.getInstance().categoryExists(category)) {
+    public long addListenerToCategory(Channel channel, String category, Long sinceSeq,
+            List<SharedTextWebSocketFrame> backlog) throws CategoryNonExistentException, CategoryBadNameException,
+            CategoryReplayUnavailableException {
+        ReplayRing ring = CategoryManager.getInstance().categoryExists(category)
+                ? CategoryManager.getInstance().getReplayRing(category) : null;
+        if (ring != null) {
             getAllChannels().add(channel);
-            CategoryManager.getInstance().getCategory(category).add(channel);
+            return ring.subscribe(channel, sinceSeq, backlog);
         } else {
             throw new CategoryNonExistentException();
         }
@@ -82,11 +93,11 @@ public class ChannelGroupManager {
     }
 
     /**
-     * Get a ChannelGroup with all the WebSocket channels currently connected.
+     * Get a BroadcastGroup with all the WebSocket channels currently connected.
      *
      * @return the allChannels
      */
-    public ChannelGroup getAllChannels() {
+    public BroadcastGroup getAllChannels() {
         return allChannels;
     }
 }
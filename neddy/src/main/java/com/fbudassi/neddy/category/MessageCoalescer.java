@@ -0,0 +1,89 @@
+package com.fbudassi.neddy.category;
+
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Buffers the messages sent to a category or a listener and delivers them
+ * together in a batch frame, a Json array of them, when the first one has waited
+ * for the coalescing window or when they reach the maximum size. It trades a
+ * bounded latency for far fewer frames, writes and system calls.
+ *
+ * @author fbudassi
+ */
+public abstract class MessageCoalescer {
+
+    // Configuration variables.
+    private static final int WINDOW = Config.getIntValue(Config.KEY_COALESCING_WINDOW);
+    private static final int MAX_SIZE = Config.getIntValue(Config.KEY_COALESCING_MAXSIZE);
+    private static volatile Timer timer;
+    private final List<SharedTextWebSocketFrame> batch = new ArrayList<SharedTextWebSocketFrame>();
+    // Length of the Json array of the buffered messages.
+    private int batchLength;
+    private boolean scheduled;
+    private final TimerTask flushTask = new TimerTask() {
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (MessageCoalescer.this) {
+                scheduled = false;
+                flush();
+            }
+        }
+    };
+
+    /**
+     * Starts coalescing messages, flushing them with the timer passed as
+     * parameter. Until then, messages are delivered right away.
+     *
+     * @param timer
+     */
+    public static void start(Timer timer) {
+        MessageCoalescer.timer = timer;
+    }
+
+    /**
+     * Adds a message to the batch.
+     *
+     * @param message a frame with one message
+     */
+    public synchronized void add(SharedTextWebSocketFrame message) {
+        batch.add(message);
+        batchLength += message.getText().length() + 1;
+
+        Timer flushTimer = timer;
+        if (flushTimer == null || batchLength >= MAX_SIZE) {
+            flush();
+        } else if (!scheduled) {
+            scheduled = true;
+            flushTimer.newTimeout(flushTask, WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Delivers the buffered messages, if any.
+     */
+    public synchronized void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        SharedTextWebSocketFrame messages = new SharedTextWebSocketFrame(
+                new ArrayList<SharedTextWebSocketFrame>(batch));
+        batch.clear();
+        batchLength = 0;
+        deliver(messages);
+    }
+
+    /**
+     * Delivers a batch of messages. It's called in order, one batch at a
+     * time.
+     *
+     * @param messages a batch frame
+     */
+    protected abstract void deliver(SharedTextWebSocketFrame messages);
+}
@@ -0,0 +1,163 @@
+package com.fbudassi.neddy.category;
+
+import com.fbudassi.neddy.action.bean.ResponseBean;
+import com.fbudassi.neddy.category.exception.CategoryReplayUnavailableException;
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Numbers the messages of a category in the order they are sent and keeps
+ * the most recent ones, so a listener that comes back after losing its
+ * connection gets the ones it missed replayed before the new ones. The
+ * numbers start at the time the category is created, in microseconds, so
+ * they keep growing if it's created again. Only the Json encoding of every
+ * message is kept, the direct buffer that was broadcast, and the frames are
+ * made again from it when they are replayed, which is rare. The oldest ones
+ * are dropped when there are too many of them or they take too many bytes.
+ *
+ * @author fbudassi
+ */
+public class ReplayRing {
+
+    // Configuration variables.
+    private static final int CAPACITY = Config.getIntValue(Config.KEY_REPLAY_CAPACITY);
+    private static final long MAX_BYTES = Config.getIntValue(Config.KEY_REPLAY_MAXBYTES);
+    private final BroadcastGroup group;
+    private final int categoryId;
+    private final MessageCoalescer coalescer;
+    // The message of a sequence number is at its remainder by the length.
+    private final ChannelBuffer[] encodings;
+    private long lastSeq;
+    private int count;
+    private long bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param group the listeners of the category
+     * @param categoryId the id of the category
+     * @param coalesce true to send the messages in batches
+     */
+    public ReplayRing(final BroadcastGroup group, int categoryId, boolean coalesce) {
+        this.group = group;
+        this.categoryId = categoryId;
+        this.encodings = new ChannelBuffer[Math.max(CAPACITY, 0)];
+        this.lastSeq = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        if (coalesce) {
+            this.coalescer = new MessageCoalescer() {
+                @Override
+                protected void deliver(SharedTextWebSocketFrame messages) {
+                    group.write(messages, messages.getSeq());
+                }
+            };
+        } else {
+            this.coalescer = null;
+        }
+    }
+
+    /**
+     * Numbers a new message, keeps it and sends it to the listeners of the
+     * category.
+     *
+     * @param response
+     */
+    public synchronized void publish(ResponseBean response) {
+        response.setSeq(lastSeq + 1);
+        SharedTextWebSocketFrame frame = new SharedTextWebSocketFrame(response);
+        store(frame.getEncoded(false, false));
+        if (coalescer != null) {
+            coalescer.add(frame);
+        } else {
+            group.write(frame, lastSeq);
+        }
+    }
+
+    /**
+     * Subscribes a listener to the category. If it passes the sequence number
+     * of the last message it got, the ones after it are added to the backlog,
+     * to be written to the listener before returning to its I/O thread, and
+     * the listener won't get any of them twice.
+     *
+     * @param channel
+     * @param sinceSeq null to get only the new messages
+     * @param backlog where the messages to replay are added
+     * @return the sequence number of the last message of the category
+     * @throws CategoryReplayUnavailableException if some of the messages
+     * after sinceSeq are no longer kept, or it's a number never sent
+     */
+    public synchronized long subscribe(Channel channel, Long sinceSeq, List<SharedTextWebSocketFrame> backlog)
+            throws CategoryReplayUnavailableException {
+        if (sinceSeq == null) {
+            // Nothing is skipped, a batch on its way may hold messages it needs.
+            group.add(channel);
+            return lastSeq;
+        }
+        if (sinceSeq > lastSeq || sinceSeq < lastSeq - count) {
+            throw new CategoryReplayUnavailableException();
+        }
+
+        // Any batch on its way is sent now, so it ends before the backlog.
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+        for (long seq = sinceSeq + 1; seq <= lastSeq; seq++) {
+            backlog.add(new SharedTextWebSocketFrame(encodings[index(seq)].duplicate(), categoryId));
+        }
+        group.add(channel, lastSeq);
+        return lastSeq;
+    }
+
+    /**
+     * Sends the messages of a coalesced category that are waiting, if any.
+     */
+    public void flush() {
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+    }
+
+    /**
+     * Keeps the encoding of a new message as the last one, dropping the
+     * oldest ones if needed.
+     *
+     * @param encoding
+     */
+    private void store(ChannelBuffer encoding) {
+        if (encodings.length == 0) {
+            lastSeq++;
+            return;
+        }
+        if (count == encodings.length) {
+            dropOldest();
+        }
+        lastSeq++;
+        encodings[index(lastSeq)] = encoding;
+        count++;
+        bytes += encoding.capacity();
+        while (bytes > MAX_BYTES && count > 0) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Drops the oldest message kept, the ones kept being the last count.
+     */
+    private void dropOldest() {
+        int index = index(lastSeq - count + 1);
+        bytes -= encodings[index].capacity();
+        encodings[index] = null;
+        count--;
+    }
+
+    /**
+     * @param seq
+     * @return the index of a message in the ring
+     */
+    private int index(long seq) {
+        return (int) (seq % encodings.length);
+    }
+}
@@ -0,0 +1,10 @@
+package com.fbudassi.neddy.category.exception;
+
+/**
+ * Thrown when the messages a listener missed in a category are no longer
+ * kept to replay them.
+ *
+ * @author fbudassi
+ */
+public class CategoryReplayUnavailableException extends Exception {
+}
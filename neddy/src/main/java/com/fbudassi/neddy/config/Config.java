@@ -26,6 +26,47 @@ public final class Config {
     public static final String KEY_RESOURCE_LISTENER = "com.fbudassi.neddy.resource.listener";
     public static final String KEY_RESOURCE_CATEGORY = "com.fbudassi.neddy.resource.category";
     public static final String KEY_RESOURCE_LISTENERS = "com.fbudassi.neddy.resource.listeners";
+    public static final String KEY_CACHE_ENABLED = "com.fbudassi.neddy.cache.enabled";
+    public static final String KEY_CACHE_MAXSIZE = "com.fbudassi.neddy.cache.maxsize";
+    public static final String KEY_CACHE_MAXFILESIZE = "com.fbudassi.neddy.cache.maxfilesize";
+    public static final String KEY_CACHE_MAXPATHS = "com.fbudassi.neddy.cache.maxpaths";
+    public static final String KEY_ETAG_WEAK = "com.fbudassi.neddy.etag.weak";
+    public static final String KEY_COMPRESSION_ENABLED = "com.fbudassi.neddy.compression.enabled";
+    public static final String KEY_COMPRESSION_MINFILESIZE = "com.fbudassi.neddy.compression.minfilesize";
+    public static final String KEY_COMPRESSION_MAXFILESIZE = "com.fbudassi.neddy.compression.maxfilesize";
+    public static final String KEY_COMPRESSION_MAXSIZE = "com.fbudassi.neddy.compression.maxsize";
+    public static final String KEY_COMPRESSION_LEVEL = "com.fbudassi.neddy.compression.level";
+    public static final String KEY_COMPRESSION_THREADS = "com.fbudassi.neddy.compression.threads";
+    public static final String KEY_COMPRESSION_MIMETYPES = "com.fbudassi.neddy.compression.mimetypes";
+    public static final String KEY_FILECHANNELS_MAXOPEN = "com.fbudassi.neddy.filechannels.maxopen";
+    public static final String KEY_FILECHANNELS_IDLETIMEOUT = "com.fbudassi.neddy.filechannels.idletimeout";
+    public static final String KEY_INLINE_MAXSIZE = "com.fbudassi.neddy.inline.maxsize";
+    public static final String KEY_PACK_FILE = "com.fbudassi.neddy.pack.file";
+    public static final String KEY_PATHFILTER_ENABLED = "com.fbudassi.neddy.pathfilter.enabled";
+    public static final String KEY_PATHFILTER_FALSEPOSITIVERATE = "com.fbudassi.neddy.pathfilter.falsepositiverate";
+    public static final String KEY_DECODER_FLYWEIGHT = "com.fbudassi.neddy.decoder.flyweight";
+    public static final String KEY_PIPELINING_MAXREQUESTS = "com.fbudassi.neddy.pipelining.maxrequests";
+    public static final String KEY_SSL_ENABLED = "com.fbudassi.neddy.ssl.enabled";
+    public static final String KEY_SSL_KEYSTORE = "com.fbudassi.neddy.ssl.keystore";
+    public static final String KEY_SSL_KEYSTORE_TYPE = "com.fbudassi.neddy.ssl.keystore.type";
+    public static final String KEY_SSL_KEYSTORE_PASSWORD = "com.fbudassi.neddy.ssl.keystore.password";
+    public static final String KEY_SSL_PROTOCOLS = "com.fbudassi.neddy.ssl.protocols";
+    public static final String KEY_SSL_CIPHERSUITES = "com.fbudassi.neddy.ssl.ciphersuites";
+    public static final String KEY_SSL_SESSIONCACHE_SIZE = "com.fbudassi.neddy.ssl.sessioncache.size";
+    public static final String KEY_SSL_SESSIONCACHE_TIMEOUT = "com.fbudassi.neddy.ssl.sessioncache.timeout";
+    public static final String KEY_SSL_HANDSHAKE_TIMEOUT = "com.fbudassi.neddy.ssl.handshaketimeout";
+    public static final String KEY_SLOWCONSUMER_POLICY = "com.fbudassi.neddy.slowconsumer.policy";
+    public static final String KEY_SLOWCONSUMER_HIGHWATERMARK = "com.fbudassi.neddy.slowconsumer.highwatermark";
+    public static final String KEY_SLOWCONSUMER_CLOSECODE = "com.fbudassi.neddy.slowconsumer.closecode";
+    public static final String KEY_SLOWCONSUMER_WRITETIMEOUT = "com.fbudassi.neddy.slowconsumer.writetimeout";
+    public static final String KEY_SLOWCONSUMER_LAGGARDS = "com.fbudassi.neddy.slowconsumer.laggards";
+    public static final String KEY_COALESCING_WINDOW = "com.fbudassi.neddy.coalescing.window";
+    public static final String KEY_COALESCING_MAXSIZE = "com.fbudassi.neddy.coalescing.maxsize";
+    public static final String KEY_DEFLATE_ENABLED = "com.fbudassi.neddy.deflate.enabled";
+    public static final String KEY_DEFLATE_THRESHOLD = "com.fbudassi.neddy.deflate.threshold";
+    public static final String KEY_DEFLATE_LEVEL = "com.fbudassi.neddy.deflate.level";
+    public static final String KEY_REPLAY_CAPACITY = "com.fbudassi.neddy.replay.capacity";
+    public static final String KEY_REPLAY_MAXBYTES = "com.fbudassi.neddy.replay.maxbytes";
 
     /**
      * Static constructor.
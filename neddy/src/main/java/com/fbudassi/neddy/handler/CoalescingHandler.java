@@ -0,0 +1,90 @@
+package com.fbudassi.neddy.handler;
+
+import com.fbudassi.neddy.category.MessageCoalescer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Coalesces the messages of the categories a listener subscribed to asking
+ * for it, sending them in batches. Any other write sends the buffered
+ * messages first, so the listener gets everything in order. It's added to
+ * the pipeline of a listener the first time it asks for it.
+ *
+ * @author fbudassi
+ */
+public class CoalescingHandler extends SimpleChannelHandler {
+
+    private final Set<String> categories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile ChannelHandlerContext ctx;
+    private final MessageCoalescer coalescer = new MessageCoalescer() {
+        @Override
+        protected void deliver(SharedTextWebSocketFrame messages) {
+            ChannelHandlerContext context = ctx;
+            Channels.write(context, Channels.future(context.getChannel()), messages);
+        }
+    };
+
+    /**
+     * Coalesces the messages of a category from now on.
+     *
+     * @param category
+     */
+    public void addCategory(String category) {
+        categories.add(category);
+    }
+
+    /**
+     * Stops coalescing the messages of a category.
+     *
+     * @param category
+     */
+    public void removeCategory(String category) {
+        categories.remove(category);
+    }
+
+    /**
+     * Buffers the messages of the coalesced categories. Anything else is sent
+     * after the buffered messages.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        this.ctx = ctx;
+        if (e.getMessage() instanceof SharedTextWebSocketFrame) {
+            SharedTextWebSocketFrame frame = (SharedTextWebSocketFrame) e.getMessage();
+            if (!frame.isBatch() && frame.getCategory() != null && categories.contains(frame.getCategory())) {
+                coalescer.add(frame);
+                // Broadcast writes are never waited for, its batch is written later.
+                e.getFuture().setSuccess();
+                return;
+            }
+        }
+
+        synchronized (coalescer) {
+            coalescer.flush();
+            ctx.sendDownstream(e);
+        }
+    }
+
+    /**
+     * Stops coalescing when the listener is closed.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        categories.clear();
+        ctx.sendUpstream(e);
+    }
+}
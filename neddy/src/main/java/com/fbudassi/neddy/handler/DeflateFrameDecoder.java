@@ -0,0 +1,228 @@
+package com.fbudassi.neddy.handler;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+
+/**
+ * Inflates the messages a listener that negotiated permessage-deflate sends
+ * compressed. It goes before the WebSocket frame decoder, which doesn't know
+ * about extensions: it rewrites every compressed frame as a plain one, with
+ * the inflated payload and a zero mask, and lets the rest through untouched,
+ * as it arrives and whatever its length. Since the client has no context
+ * takeover, an Inflater only exists while a compressed message is being
+ * read.
+ *
+ * @author fbudassi
+ */
+public class DeflateFrameDecoder extends FrameDecoder {
+
+    // Maximum length of an inflated message, like the HTTP aggregator.
+    private static final int MAX_MESSAGE_LENGTH = 65536;
+    // Deflate grows what it can't compress by a few bytes per block at most,
+    // so a longer compressed frame can't inflate within the maximum.
+    private static final int MAX_COMPRESSED_FRAME_LENGTH = MAX_MESSAGE_LENGTH + 1024;
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+    private static final int MASK = 0x80;
+    private static final int OPCODE_CONT = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    private static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+    private static final int CLOSE_INVALID_DATA = 1007;
+    private Inflater inflater;
+    private int inflatedLength;
+    private boolean corrupt;
+    // Bytes of a frame being let through that haven't arrived yet.
+    private long passThroughLength;
+
+    /**
+     * Decodes a whole frame, inflating it if it's compressed.
+     *
+     * @param ctx
+     * @param channel
+     * @param buffer
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (corrupt) {
+            buffer.skipBytes(buffer.readableBytes());
+            return null;
+        }
+        if (passThroughLength > 0) {
+            return passThrough(buffer);
+        }
+        if (buffer.readableBytes() < 2) {
+            return null;
+        }
+
+        int start = buffer.readerIndex();
+        int b0 = buffer.getUnsignedByte(start);
+        int b1 = buffer.getUnsignedByte(start + 1);
+        int lengthBits = b1 & 0x7F;
+        int headerLength = 2 + (lengthBits == 126 ? 2 : lengthBits == 127 ? 8 : 0) + ((b1 & MASK) != 0 ? 4 : 0);
+        if (buffer.readableBytes() < headerLength) {
+            return null;
+        }
+        long length = lengthBits == 126 ? buffer.getUnsignedShort(start + 2)
+                : lengthBits == 127 ? buffer.getLong(start + 2) : lengthBits;
+
+        // Anything that isn't part of a compressed message goes as it is,
+        // the frame decoder deals with RSV1 where it doesn't belong.
+        int opcode = b0 & 0x0F;
+        boolean compressed = inflater == null
+                ? (b0 & RSV1) != 0 && (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY)
+                : opcode == OPCODE_CONT && (b0 & RSV1) == 0;
+        if (!compressed) {
+            passThroughLength = headerLength + length;
+            return passThrough(buffer);
+        }
+        if (length > MAX_COMPRESSED_FRAME_LENGTH) {
+            return fail(channel, buffer, CLOSE_MESSAGE_TOO_BIG, "Message too big");
+        }
+        if (buffer.readableBytes() < headerLength + length) {
+            return null;
+        }
+
+        byte[] payload = new byte[(int) length];
+        buffer.getBytes(start + headerLength, payload);
+        if ((b1 & MASK) != 0) {
+            int maskIndex = start + headerLength - 4;
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= buffer.getByte(maskIndex + (i & 3));
+            }
+        }
+        buffer.skipBytes(headerLength + (int) length);
+
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflatedLength = 0;
+        }
+        ChannelBuffer inflated;
+        try {
+            inflated = inflate(payload);
+            if (inflated != null && (b0 & FIN) != 0) {
+                ChannelBuffer tail = inflate(TAIL);
+                inflated = tail == null ? null : ChannelBuffers.wrappedBuffer(inflated, tail);
+                endInflater();
+            }
+        } catch (DataFormatException dfex) {
+            return fail(channel, buffer, CLOSE_INVALID_DATA, "Invalid compressed data");
+        }
+        if (inflated == null) {
+            return fail(channel, buffer, CLOSE_MESSAGE_TOO_BIG, "Message too big");
+        }
+        return toFrame(b0 & ~RSV1, inflated);
+    }
+
+    /**
+     * Lets through the bytes of the current frame that have arrived.
+     *
+     * @param buffer
+     * @return
+     */
+    private ChannelBuffer passThrough(ChannelBuffer buffer) {
+        int length = (int) Math.min(passThroughLength, buffer.readableBytes());
+        passThroughLength -= length;
+        return buffer.readBytes(length);
+    }
+
+    /**
+     * Inflates part of a compressed message.
+     *
+     * @param input
+     * @return the inflated bytes, or null if the message gets too long
+     * @throws DataFormatException
+     */
+    private ChannelBuffer inflate(byte[] input) throws DataFormatException {
+        inflater.setInput(input);
+        ChannelBuffer inflated = ChannelBuffers.dynamicBuffer(input.length * 2);
+        byte[] chunk = new byte[Math.max(input.length * 2, 256)];
+        int read;
+        while ((read = inflater.inflate(chunk)) > 0) {
+            inflatedLength += read;
+            if (inflatedLength > MAX_MESSAGE_LENGTH) {
+                return null;
+            }
+            inflated.writeBytes(chunk, 0, read);
+        }
+        return inflated;
+    }
+
+    /**
+     * Encodes a masked frame, with a zero mask, as the frame decoder expects
+     * it from a client.
+     *
+     * @param firstByte the FIN bit, the RSV bits and the opcode
+     * @param payload
+     * @return
+     */
+    private static ChannelBuffer toFrame(int firstByte, ChannelBuffer payload) {
+        int length = payload.readableBytes();
+        ChannelBuffer frame = ChannelBuffers.buffer(14 + length);
+        frame.writeByte(firstByte);
+        if (length <= 125) {
+            frame.writeByte(MASK | length);
+        } else if (length <= 0xFFFF) {
+            frame.writeByte(MASK | 126);
+            frame.writeShort(length);
+        } else {
+            frame.writeByte(MASK | 127);
+            frame.writeLong(length);
+        }
+        frame.writeInt(0);
+        frame.writeBytes(payload);
+        return frame;
+    }
+
+    /**
+     * Closes the connection with a close code, ignoring anything it sends
+     * afterwards.
+     *
+     * @param channel
+     * @param buffer
+     * @param code
+     * @param reason
+     * @return
+     */
+    private Object fail(Channel channel, ChannelBuffer buffer, int code, String reason) {
+        corrupt = true;
+        endInflater();
+        buffer.skipBytes(buffer.readableBytes());
+        channel.write(new CloseWebSocketFrame(code, reason)).addListener(ChannelFutureListener.CLOSE);
+        return null;
+    }
+
+    /**
+     * Frees the Inflater of the message being read, if any.
+     */
+    private void endInflater() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Frees the Inflater if the listener leaves in the middle of a message.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        endInflater();
+        super.channelClosed(ctx, e);
+    }
+}
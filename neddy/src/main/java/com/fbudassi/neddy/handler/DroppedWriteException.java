@@ -0,0 +1,27 @@
+package com.fbudassi.neddy.handler;
+
+import java.io.IOException;
+
+/**
+ * The failure of a write that the slow consumer policy dropped on purpose.
+ * It's not an I/O error, so it's not counted as one, and it carries no
+ * stack trace since it's reused.
+ *
+ * @author fbudassi
+ */
+public class DroppedWriteException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     */
+    public DroppedWriteException() {
+        super("Dropped by the slow consumer policy.");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,318 @@
+package com.fbudassi.neddy.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+/**
+ * A request without body decoded by FlyweightHttpRequestDecoder. It's a view
+ * over the received bytes of the request line and the headers: the headers
+ * are looked up in them only when they are asked for, and no map of headers
+ * is built. If the request is modified or all its headers are asked for, it's
+ * inflated into a DefaultHttpRequest and everything is delegated to it.
+ *
+ * @author fbudassi
+ */
+public class FlyweightHttpRequest implements HttpRequest {
+
+    private final ChannelBuffer head;
+    private final HttpMethod method;
+    private final HttpVersion version;
+    private final int uriStart;
+    private final int uriEnd;
+    // Start of every header line in the head.
+    private final int[] headerStarts;
+    private String uri;
+    // Connection header, looked up for every response, so it's kept once found.
+    private String connection;
+    private boolean connectionLookedUp;
+    private DefaultHttpRequest inflated;
+
+    /**
+     * Constructor.
+     *
+     * @param head the request line and the headers, up to the empty line
+     * @param method
+     * @param version
+     * @param uriStart
+     * @param uriEnd
+     * @param headerStarts
+     */
+    FlyweightHttpRequest(ChannelBuffer head, HttpMethod method, HttpVersion version, int uriStart, int uriEnd,
+            int[] headerStarts) {
+        this.head = head;
+        this.method = method;
+        this.version = version;
+        this.uriStart = uriStart;
+        this.uriEnd = uriEnd;
+        this.headerStarts = headerStarts;
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+        return inflated == null ? method : inflated.getMethod();
+    }
+
+    @Override
+    public String getUri() {
+        if (inflated != null) {
+            return inflated.getUri();
+        }
+        if (uri == null) {
+            uri = toAsciiString(head, uriStart, uriEnd);
+        }
+        return uri;
+    }
+
+    @Override
+    public HttpVersion getProtocolVersion() {
+        return inflated == null ? version : inflated.getProtocolVersion();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        if (inflated != null) {
+            return inflated.getHeader(name);
+        }
+        if (HttpHeaders.Names.CONNECTION.equalsIgnoreCase(name)) {
+            if (!connectionLookedUp) {
+                connection = findHeader(name);
+                connectionLookedUp = true;
+            }
+            return connection;
+        }
+        return findHeader(name);
+    }
+
+    @Override
+    public List<String> getHeaders(String name) {
+        if (inflated != null) {
+            return inflated.getHeaders(name);
+        }
+        List<String> values = new ArrayList<String>(1);
+        for (int i = 0; i < headerStarts.length; i++) {
+            String value = getHeaderValue(i, name);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return inflated == null ? findHeader(name) != null : inflated.containsHeader(name);
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> getHeaders() {
+        return inflate().getHeaders();
+    }
+
+    @Override
+    public Set<String> getHeaderNames() {
+        return inflate().getHeaderNames();
+    }
+
+    @Override
+    public ChannelBuffer getContent() {
+        return inflated == null ? ChannelBuffers.EMPTY_BUFFER : inflated.getContent();
+    }
+
+    @Override
+    @Deprecated
+    public long getContentLength() {
+        return HttpHeaders.getContentLength(this);
+    }
+
+    @Override
+    @Deprecated
+    public long getContentLength(long defaultValue) {
+        return HttpHeaders.getContentLength(this, defaultValue);
+    }
+
+    @Override
+    public boolean isChunked() {
+        return inflated != null && inflated.isChunked();
+    }
+
+    @Override
+    @Deprecated
+    public boolean isKeepAlive() {
+        return HttpHeaders.isKeepAlive(this);
+    }
+
+    @Override
+    public void setMethod(HttpMethod method) {
+        inflate().setMethod(method);
+    }
+
+    @Override
+    public void setUri(String uri) {
+        inflate().setUri(uri);
+    }
+
+    @Override
+    public void setProtocolVersion(HttpVersion version) {
+        inflate().setProtocolVersion(version);
+    }
+
+    @Override
+    public void setContent(ChannelBuffer content) {
+        inflate().setContent(content);
+    }
+
+    @Override
+    public void addHeader(String name, Object value) {
+        inflate().addHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(String name, Object value) {
+        inflate().setHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(String name, Iterable<?> values) {
+        inflate().setHeader(name, values);
+    }
+
+    @Override
+    public void removeHeader(String name) {
+        inflate().removeHeader(name);
+    }
+
+    @Override
+    public void clearHeaders() {
+        inflate().clearHeaders();
+    }
+
+    @Override
+    public void setChunked(boolean chunked) {
+        inflate().setChunked(chunked);
+    }
+
+    @Override
+    public String toString() {
+        return inflated == null ? method + " " + getUri() + " " + version : inflated.toString();
+    }
+
+    /**
+     * Gets the value of the first header with the name.
+     *
+     * @param name
+     * @return
+     */
+    private String findHeader(String name) {
+        for (int i = 0; i < headerStarts.length; i++) {
+            String value = getHeaderValue(i, name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value of a header line if it has the name.
+     *
+     * @param header the index of the header line
+     * @param name the name of the header, or null for any name
+     * @return
+     */
+    private String getHeaderValue(int header, String name) {
+        int start = headerStarts[header];
+        int colon = head.indexOf(start, head.capacity(), (byte) ':');
+        if (name != null && !nameEquals(head, start, colon, name)) {
+            return null;
+        }
+
+        // Trim the value, the line may end with CRLF or LF.
+        int valueStart = colon + 1;
+        int valueEnd = head.indexOf(valueStart, head.capacity(), (byte) '\n');
+        while (valueStart < valueEnd && isWhitespace(head.getByte(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart) {
+            byte b = head.getByte(valueEnd - 1);
+            if (!isWhitespace(b) && b != '\r') {
+                break;
+            }
+            valueEnd--;
+        }
+        return toAsciiString(head, valueStart, valueEnd);
+    }
+
+    /**
+     * Builds a DefaultHttpRequest with all the headers, to be used from now
+     * on.
+     *
+     * @return
+     */
+    private DefaultHttpRequest inflate() {
+        if (inflated == null) {
+            DefaultHttpRequest request = new DefaultHttpRequest(version, method, getUri());
+            for (int i = 0; i < headerStarts.length; i++) {
+                int start = headerStarts[i];
+                int colon = head.indexOf(start, head.capacity(), (byte) ':');
+                request.addHeader(toAsciiString(head, start, colon), getHeaderValue(i, null));
+            }
+            inflated = request;
+        }
+        return inflated;
+    }
+
+    /**
+     * Checks if a header name in the buffer is the given one, ignoring case.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @param name
+     * @return
+     */
+    static boolean nameEquals(ChannelBuffer buffer, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) buffer.getByte(start + i)) != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param b
+     * @return true if it's a space or a tab
+     */
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Builds a String out of some ASCII bytes of the buffer, without going
+     * through a charset decoder.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @return
+     */
+    private static String toAsciiString(ChannelBuffer buffer, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) buffer.getByte(start + i);
+        }
+        return new String(chars);
+    }
+}
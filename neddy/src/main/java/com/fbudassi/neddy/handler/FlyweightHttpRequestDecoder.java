@@ -0,0 +1,231 @@
+package com.fbudassi.neddy.handler;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Decoder of the simple requests of the listeners port, i.e. GET and HEAD
+ * requests without body, like the ones of static files. Every request is
+ * decoded into a FlyweightHttpRequest, a view over the received bytes that
+ * doesn't build any map of headers.
+ *
+ * Anything unusual (another method or port, a body, an upgrade, an expected
+ * continue, folded headers, non-ASCII bytes or too long requests) makes it
+ * replace itself with a stock HttpRequestDecoder, which gets the bytes not
+ * decoded yet and takes care of the rest of the connection.
+ *
+ * @author fbudassi
+ */
+public class FlyweightHttpRequestDecoder extends FrameDecoder {
+
+    // Same limits as HttpRequestDecoder.
+    private static final int MAX_INITIAL_LINE_LENGTH = 4096;
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int MAX_HEADERS = 32;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private final int port;
+    private boolean portChecked;
+
+    /**
+     * Constructor.
+     *
+     * @param port the only local port it decodes requests for, 0 for any
+     */
+    public FlyweightHttpRequestDecoder(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Decodes the next request, or falls back to the stock decoder.
+     *
+     * @param ctx
+     * @param channel
+     * @param buffer
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (!portChecked) {
+            portChecked = true;
+            SocketAddress localAddress = channel.getLocalAddress();
+            if (port != 0 && localAddress instanceof InetSocketAddress
+                    && ((InetSocketAddress) localAddress).getPort() != port) {
+                return fallback(ctx, buffer);
+            }
+        }
+
+        // Skip the line breaks between requests.
+        while (buffer.readable() && isLineBreak(buffer.getByte(buffer.readerIndex()))) {
+            buffer.skipBytes(1);
+        }
+        if (!buffer.readable()) {
+            return null;
+        }
+
+        int start = buffer.readerIndex();
+        int maxEnd = start + MAX_INITIAL_LINE_LENGTH + MAX_HEADER_SIZE;
+        int limit = Math.min(buffer.writerIndex(), maxEnd);
+
+        // Request line: GET or HEAD, the Uri and the version.
+        int lineEnd = buffer.indexOf(start, limit, LF);
+        if (lineEnd < 0) {
+            return buffer.writerIndex() >= maxEnd ? fallback(ctx, buffer) : null;
+        }
+        HttpMethod method;
+        int uriStart;
+        if (startsWith(buffer, start, "GET ")) {
+            method = HttpMethod.GET;
+            uriStart = start + 4;
+        } else if (startsWith(buffer, start, "HEAD ")) {
+            method = HttpMethod.HEAD;
+            uriStart = start + 5;
+        } else {
+            return fallback(ctx, buffer);
+        }
+        int contentEnd = buffer.getByte(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+        int uriEnd = buffer.indexOf(uriStart, contentEnd, (byte) ' ');
+        if (uriEnd <= uriStart || !isAscii(buffer, uriStart, uriEnd)) {
+            return fallback(ctx, buffer);
+        }
+        HttpVersion version;
+        if (contentEnd - uriEnd - 1 != 8) {
+            return fallback(ctx, buffer);
+        } else if (startsWith(buffer, uriEnd + 1, "HTTP/1.1")) {
+            version = HttpVersion.HTTP_1_1;
+        } else if (startsWith(buffer, uriEnd + 1, "HTTP/1.0")) {
+            version = HttpVersion.HTTP_1_0;
+        } else {
+            return fallback(ctx, buffer);
+        }
+
+        // Header lines, up to the empty one.
+        int[] headerStarts = new int[MAX_HEADERS];
+        int headers = 0;
+        int lineStart = lineEnd + 1;
+        while (true) {
+            lineEnd = buffer.indexOf(lineStart, limit, LF);
+            if (lineEnd < 0) {
+                return buffer.writerIndex() >= maxEnd ? fallback(ctx, buffer) : null;
+            }
+            contentEnd = buffer.getByte(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+            if (contentEnd <= lineStart) {
+                break;
+            }
+
+            int colon = buffer.indexOf(lineStart, contentEnd, (byte) ':');
+            if (headers == MAX_HEADERS || colon <= lineStart
+                    || FlyweightHttpRequest.isWhitespace(buffer.getByte(lineStart))
+                    || !isAscii(buffer, lineStart, contentEnd) || isUnusualHeader(buffer, lineStart, colon, contentEnd)) {
+                return fallback(ctx, buffer);
+            }
+            headerStarts[headers++] = lineStart - start;
+            lineStart = lineEnd + 1;
+        }
+
+        int[] starts = new int[headers];
+        System.arraycopy(headerStarts, 0, starts, 0, headers);
+        ChannelBuffer head = buffer.readSlice(lineEnd + 1 - start);
+        return new FlyweightHttpRequest(head, method, version, uriStart - start, uriEnd - start, starts);
+    }
+
+    /**
+     * Replaces this decoder with a stock HttpRequestDecoder and passes it all
+     * the bytes not decoded yet.
+     *
+     * @param ctx
+     * @param buffer
+     * @return null, since there's no request decoded
+     * @throws Exception
+     */
+    private Object fallback(ChannelHandlerContext ctx, ChannelBuffer buffer) throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ctx.getPipeline().replace(this, ctx.getName(), decoder);
+        ChannelBuffer remaining = buffer.readBytes(buffer.readableBytes());
+        Channel channel = ctx.getChannel();
+        decoder.handleUpstream(ctx.getPipeline().getContext(decoder),
+                new UpstreamMessageEvent(channel, remaining, channel.getRemoteAddress()));
+        return null;
+    }
+
+    /**
+     * Checks if a header needs the stock decoder: the ones announcing a body,
+     * an upgrade or an expected continue.
+     *
+     * @param buffer
+     * @param start
+     * @param colon
+     * @param end
+     * @return
+     */
+    private static boolean isUnusualHeader(ChannelBuffer buffer, int start, int colon, int end) {
+        if (FlyweightHttpRequest.nameEquals(buffer, start, colon, HttpHeaders.Names.CONTENT_LENGTH)) {
+            // Only an empty body is fine.
+            int valueStart = colon + 1;
+            while (valueStart < end && FlyweightHttpRequest.isWhitespace(buffer.getByte(valueStart))) {
+                valueStart++;
+            }
+            return end - valueStart < 1 || buffer.getByte(valueStart) != '0'
+                    || (end - valueStart > 1 && !FlyweightHttpRequest.isWhitespace(buffer.getByte(valueStart + 1)));
+        }
+        return FlyweightHttpRequest.nameEquals(buffer, start, colon, HttpHeaders.Names.TRANSFER_ENCODING)
+                || FlyweightHttpRequest.nameEquals(buffer, start, colon, HttpHeaders.Names.UPGRADE)
+                || FlyweightHttpRequest.nameEquals(buffer, start, colon, HttpHeaders.Names.EXPECT);
+    }
+
+    /**
+     * Checks if the buffer has the given ASCII text at an index.
+     *
+     * @param buffer
+     * @param index
+     * @param text
+     * @return
+     */
+    private static boolean startsWith(ChannelBuffer buffer, int index, String text) {
+        if (buffer.writerIndex() - index < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.getByte(index + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if some bytes are printable ASCII characters or tabs.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @return
+     */
+    private static boolean isAscii(ChannelBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if ((b < ' ' && b != '\t') || b == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param b
+     * @return true if it's CR or LF
+     */
+    private static boolean isLineBreak(byte b) {
+        return b == CR || b == LF;
+    }
+}
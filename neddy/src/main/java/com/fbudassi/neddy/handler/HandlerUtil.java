@@ -1,8 +1,15 @@
 package com.fbudassi.neddy.handler;
 
+import com.fbudassi.neddy.NeddyPipelineFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.util.CharsetUtil;
 import org.slf4j.Logger;
@@ -16,26 +23,155 @@ import org.slf4j.LoggerFactory;
 public class HandlerUtil {
 
     private static final Logger logger = LoggerFactory.getLogger(HandlerUtil.class);
+    private static final String CRLF = "\r\n";
+    // Encoded error responses by status code.
+    private static final ConcurrentMap<Integer, ErrorResponse> ERROR_RESPONSES =
+            new ConcurrentHashMap<Integer, ErrorResponse>();
+
+    /**
+     * Static constructor.
+     */
+    static {
+        HttpResponseStatus[] commonStatuses = {HttpResponseStatus.BAD_REQUEST, HttpResponseStatus.FORBIDDEN,
+            HttpResponseStatus.NOT_FOUND, HttpResponseStatus.METHOD_NOT_ALLOWED,
+            HttpResponseStatus.PRECONDITION_FAILED, HttpResponseStatus.INTERNAL_SERVER_ERROR,
+            HttpResponseStatus.SERVICE_UNAVAILABLE};
+        for (HttpResponseStatus status : commonStatuses) {
+            ERROR_RESPONSES.put(status.getCode(), new ErrorResponse(status));
+        }
+    }
 
     /**
      * Handy method to inform of an error processing the request and close the
-     * connection.
+     * connection. It's meant for protocol-level failures, after which the
+     * connection can't be trusted anymore.
      *
      * @param channel
      * @param status
      */
     public static void sendError(Channel channel, HttpResponseStatus status) {
+        sendError(channel, null, status);
+    }
+
+    /**
+     * Handy method to inform of an error processing a well-formed request.
+     * The connection is kept open if the request asked for it. The response
+     * is written from buffers encoded once per status.
+     *
+     * @param channel
+     * @param request the request, or null to close the connection
+     * @param status
+     */
+    public static void sendError(Channel channel, HttpRequest request, HttpResponseStatus status) {
         // Log some information about the reason.
         logger.info("Error in request: {} - {}", status.getCode(), status.getReasonPhrase());
 
-        // Send error response.
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
-        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
-        response.setContent(ChannelBuffers.copiedBuffer(
-                "Failure: " + status.toString() + "\r\n",
-                CharsetUtil.UTF_8));
+        ErrorResponse errorResponse = ERROR_RESPONSES.get(status.getCode());
+        if (errorResponse == null) {
+            errorResponse = new ErrorResponse(status);
+            ErrorResponse previous = ERROR_RESPONSES.putIfAbsent(status.getCode(), errorResponse);
+            if (previous != null) {
+                errorResponse = previous;
+            }
+        }
+
+        // Send error response, without the body if it's a HEAD request.
+        boolean keepAlive = request != null && HttpHeaders.isKeepAlive(request);
+        ChannelBuffer headers = keepAlive ? errorResponse.keepAliveHeaders : errorResponse.closeHeaders;
+        ChannelFuture future;
+        if (request != null && request.getMethod() == HttpMethod.HEAD) {
+            future = channel.write(headers.duplicate());
+        } else {
+            future = channel.write(ChannelBuffers.wrappedBuffer(true, headers, errorResponse.body));
+        }
+
+        // Close the connection as soon as the error message is sent, unless it's kept alive.
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Checks if a channel is encrypted with TLS. File regions can't be
+     * written to it, since the SslHandler only encrypts buffers.
+     *
+     * @param channel
+     * @return
+     */
+    public static boolean isSecure(Channel channel) {
+        return channel.getPipeline().get(NeddyPipelineFactory.HANDLER_SSL) != null;
+    }
+
+    /**
+     * Removes a handler from a pipeline, if it's there.
+     *
+     * @param pipeline
+     * @param name
+     */
+    public static void removeIfPresent(ChannelPipeline pipeline, String name) {
+        if (pipeline.get(name) != null) {
+            pipeline.remove(name);
+        }
+    }
+
+    /**
+     * Encodes the initial line and the headers of a response, the same way
+     * HttpResponseEncoder does, so they can be written together with the
+     * content in a single gathering write.
+     *
+     * @param response
+     * @return
+     */
+    public static ChannelBuffer encodeHeaders(HttpResponse response) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(response.getProtocolVersion().getText()).append(' ')
+                .append(response.getStatus().getCode()).append(' ')
+                .append(response.getStatus().getReasonPhrase()).append(CRLF);
+        for (Map.Entry<String, String> header : response.getHeaders()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+        }
+        sb.append(CRLF);
+        return ChannelBuffers.copiedBuffer(sb, CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Encodes some text in a read-only direct buffer, so it can be shared by
+     * many responses and written without copies.
+     *
+     * @param text
+     * @return
+     */
+    private static ChannelBuffer encode(String text) {
+        byte[] bytes = text.getBytes(CharsetUtil.UTF_8);
+        ChannelBuffer buffer = ChannelBuffers.directBuffer(bytes.length);
+        buffer.writeBytes(bytes);
+        return ChannelBuffers.unmodifiableBuffer(buffer);
+    }
+
+    /**
+     * The encoded error response of a status, with the headers to keep the
+     * connection alive or to close it.
+     */
+    private static class ErrorResponse {
+
+        private final ChannelBuffer keepAliveHeaders;
+        private final ChannelBuffer closeHeaders;
+        private final ChannelBuffer body;
 
-        // Close the connection as soon as the error message is sent.
-        channel.write(response).addListener(ChannelFutureListener.CLOSE);
+        /**
+         * Constructor.
+         *
+         * @param status
+         */
+        ErrorResponse(HttpResponseStatus status) {
+            body = encode("Failure: " + status.toString() + CRLF);
+            String headers = HttpVersion.HTTP_1_1.getText() + ' ' + status.getCode() + ' '
+                    + status.getReasonPhrase() + CRLF
+                    + HttpHeaders.Names.CONTENT_TYPE + ": text/plain; charset=UTF-8" + CRLF
+                    + HttpHeaders.Names.CONTENT_LENGTH + ": " + body.readableBytes() + CRLF
+                    + HttpHeaders.Names.CONNECTION + ": ";
+            keepAliveHeaders = encode(headers + HttpHeaders.Values.KEEP_ALIVE + CRLF + CRLF);
+            closeHeaders = encode(headers + HttpHeaders.Values.CLOSE + CRLF + CRLF);
+        }
     }
 }
@@ -0,0 +1,447 @@
+package com.fbudassi.neddy.handler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Keeps the responses of pipelined requests in the order of the requests.
+ * Up to a maximum number of requests of a connection are handled at the same
+ * time, the rest wait for their turn. The writes of the response at the head
+ * of the line go straight to the client, and the ones of the responses
+ * behind it are held until all the previous ones are complete.
+ *
+ * A response is complete when the request has been handled, unless it was
+ * deferred to be written from another thread, which must resume it before
+ * writing and complete it when it's done.
+ *
+ * The writes of the buffers held, and the ones of the head of the line while
+ * a read from the socket is being handled (see getReadBatchHandler()), are
+ * merged in a single gathering write, so pipelined responses go out in as
+ * few system calls as possible.
+ *
+ * @author fbudassi
+ */
+public class HttpPipeliningHandler extends SimpleChannelHandler {
+
+    // Response being written by the current thread.
+    private static final ThreadLocal<PipelinedResponse> CURRENT = new ThreadLocal<PipelinedResponse>();
+    // Response of the requests that don't go through a pipelining handler.
+    private static final PipelinedResponse NONE = new PipelinedResponse(null);
+    private final int maxRequests;
+    private final ChannelHandler readBatchHandler = new ReadBatchHandler();
+    // Responses of the requests being handled, in order.
+    private final LinkedList<PipelinedResponse> responses = new LinkedList<PipelinedResponse>();
+    // Requests waiting to be handled.
+    private final LinkedList<MessageEvent> waitingRequests = new LinkedList<MessageEvent>();
+    // Writes ready to be sent together.
+    private final List<ChannelEvent> ready = new ArrayList<ChannelEvent>();
+    private volatile ChannelHandlerContext ctx;
+    private boolean batching;
+    private boolean dispatchingWaitingRequests;
+
+    /**
+     * Constructor.
+     *
+     * @param maxRequests the maximum number of requests handled at the same
+     * time
+     */
+    public HttpPipeliningHandler(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Gets the handler that must be the first one of the pipeline, so the
+     * writes made while a read from the socket is handled are sent together
+     * at the end of it.
+     *
+     * @return
+     */
+    public ChannelHandler getReadBatchHandler() {
+        return readBatchHandler;
+    }
+
+    /**
+     * Defers the completion of the response of the request being handled by
+     * the current thread, so it can be written from another thread later.
+     *
+     * @param channel
+     * @return the response to resume and complete
+     */
+    public static PipelinedResponse defer(Channel channel) {
+        PipelinedResponse response = CURRENT.get();
+        if (response == null || response.handler == null || response.handler.ctx.getChannel() != channel) {
+            return NONE;
+        }
+        response.deferred = true;
+        return response;
+    }
+
+    /**
+     * Handles the requests in order, up to the maximum at the same time.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof HttpRequest)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        this.ctx = ctx;
+        synchronized (this) {
+            if (!waitingRequests.isEmpty() || !canDispatch(e)) {
+                waitingRequests.add(e);
+                return;
+            }
+        }
+        dispatch(ctx, e);
+    }
+
+    /**
+     * Holds the writes of the responses that are not at the head of the line.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        this.ctx = ctx;
+        handleDownstreamEvent(ctx, e, e.getMessage() instanceof ChannelBuffer);
+    }
+
+    /**
+     * Closes the connection only after the previous responses have been
+     * written.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        handleDownstreamEvent(ctx, e, false);
+    }
+
+    /**
+     * Fails the writes that were held.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            for (PipelinedResponse response : responses) {
+                failAll(response.pending);
+            }
+            failAll(ready);
+            responses.clear();
+            waitingRequests.clear();
+        }
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Sends, holds or batches a downstream event, depending on the response
+     * it belongs to.
+     *
+     * @param ctx
+     * @param e
+     * @param mergeable true if it's the write of a buffer
+     */
+    private synchronized void handleDownstreamEvent(ChannelHandlerContext ctx, ChannelEvent e, boolean mergeable) {
+        PipelinedResponse response = CURRENT.get();
+        if (response != null && response.handler == this && !response.complete && responses.peek() != response) {
+            response.pending.add(e);
+        } else if (batching && mergeable) {
+            ready.add(e);
+        } else {
+            flush();
+            ctx.sendDownstream(e);
+        }
+    }
+
+    /**
+     * Handles a request, completing its response when it's done unless it was
+     * deferred.
+     *
+     * @param ctx
+     * @param e
+     */
+    private void dispatch(ChannelHandlerContext ctx, MessageEvent e) {
+        PipelinedResponse response = new PipelinedResponse(this);
+        synchronized (this) {
+            responses.add(response);
+        }
+
+        PipelinedResponse previous = response.resume();
+        try {
+            ctx.sendUpstream(e);
+        } finally {
+            if (response.deferred) {
+                response.suspend(previous);
+            } else {
+                response.complete(previous);
+            }
+        }
+    }
+
+    /**
+     * Checks if a request can be handled now. A WebSocket handshake waits
+     * until all the previous responses are complete, since it changes the
+     * pipeline.
+     *
+     * @param e
+     * @return
+     */
+    private boolean canDispatch(MessageEvent e) {
+        if (responses.size() >= maxRequests) {
+            return false;
+        }
+        return responses.isEmpty() || !((HttpRequest) e.getMessage()).containsHeader(HttpHeaders.Names.UPGRADE);
+    }
+
+    /**
+     * Marks a response as complete, sends the writes of the ones that get to
+     * the head of the line and handles the requests that were waiting.
+     *
+     * @param response
+     */
+    private void completed(PipelinedResponse response) {
+        boolean waiting;
+        synchronized (this) {
+            response.complete = true;
+            while (!responses.isEmpty()) {
+                PipelinedResponse head = responses.getFirst();
+                ready.addAll(head.pending);
+                head.pending.clear();
+                if (!head.complete) {
+                    break;
+                }
+                responses.removeFirst();
+            }
+            if (!batching) {
+                flush();
+            }
+            waiting = !waitingRequests.isEmpty();
+        }
+
+        // Handle the waiting requests in the I/O thread of the connection.
+        if (waiting) {
+            ctx.getPipeline().execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchWaitingRequests();
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles the waiting requests while there's room for them. It doesn't
+     * nest, the requests completed meanwhile just let the loop go on.
+     */
+    private void dispatchWaitingRequests() {
+        while (true) {
+            MessageEvent e;
+            synchronized (this) {
+                if (dispatchingWaitingRequests || waitingRequests.isEmpty() || !canDispatch(waitingRequests.peek())) {
+                    return;
+                }
+                e = waitingRequests.removeFirst();
+                dispatchingWaitingRequests = true;
+            }
+            try {
+                dispatch(ctx, e);
+            } finally {
+                synchronized (this) {
+                    dispatchingWaitingRequests = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the ready events, merging the consecutive writes of buffers in a
+     * single gathering write.
+     */
+    private void flush() {
+        if (ready.isEmpty()) {
+            return;
+        }
+        List<ChannelEvent> events = new ArrayList<ChannelEvent>(ready);
+        ready.clear();
+
+        int start = 0;
+        while (start < events.size()) {
+            int end = start + 1;
+            while (end < events.size() && isBufferWrite(events.get(start)) && isBufferWrite(events.get(end))) {
+                end++;
+            }
+            if (end - start == 1) {
+                ctx.sendDownstream(events.get(start));
+            } else {
+                writeMerged(events.subList(start, end));
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Writes some buffers at once, notifying the futures of all of them.
+     *
+     * @param writes
+     */
+    private void writeMerged(List<ChannelEvent> writes) {
+        ChannelBuffer[] buffers = new ChannelBuffer[writes.size()];
+        final ChannelFuture[] futures = new ChannelFuture[writes.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            MessageEvent write = (MessageEvent) writes.get(i);
+            buffers[i] = (ChannelBuffer) write.getMessage();
+            futures[i] = write.getFuture();
+        }
+
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                for (ChannelFuture original : futures) {
+                    if (future.isSuccess()) {
+                        original.setSuccess();
+                    } else {
+                        original.setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(true, buffers));
+    }
+
+    /**
+     * @param e
+     * @return true if it's the write of a buffer
+     */
+    private static boolean isBufferWrite(ChannelEvent e) {
+        return e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof ChannelBuffer;
+    }
+
+    /**
+     * Fails the futures of some events that won't be sent.
+     *
+     * @param events
+     */
+    private static void failAll(List<ChannelEvent> events) {
+        for (ChannelEvent event : events) {
+            event.getFuture().setFailure(new ClosedChannelException());
+        }
+        events.clear();
+    }
+
+    /**
+     * The response of a pipelined request.
+     */
+    public static class PipelinedResponse {
+
+        private final HttpPipeliningHandler handler;
+        private final List<ChannelEvent> pending = new ArrayList<ChannelEvent>();
+        private volatile boolean deferred;
+        private volatile boolean complete;
+
+        /**
+         * Constructor.
+         *
+         * @param handler
+         */
+        PipelinedResponse(HttpPipeliningHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Makes the writes of the current thread belong to this response.
+         *
+         * @return the response the current thread was writing before
+         */
+        public PipelinedResponse resume() {
+            PipelinedResponse previous = CURRENT.get();
+            if (handler != null) {
+                CURRENT.set(this);
+            }
+            return previous;
+        }
+
+        /**
+         * Stops writing this response from the current thread, without
+         * completing it.
+         *
+         * @param previous the response returned by resume()
+         */
+        public void suspend(PipelinedResponse previous) {
+            if (handler != null) {
+                CURRENT.set(previous);
+            }
+        }
+
+        /**
+         * Completes the response, so the next ones can be sent.
+         *
+         * @param previous the response returned by resume()
+         */
+        public void complete(PipelinedResponse previous) {
+            suspend(previous);
+            if (handler != null && !complete) {
+                handler.completed(this);
+            }
+        }
+    }
+
+    /**
+     * Marks the handling of every read from the socket, so the writes of the
+     * buffers of the head of the line are sent together at the end of it.
+     */
+    private class ReadBatchHandler extends SimpleChannelUpstreamHandler {
+
+        /**
+         * Handles a read, then sends the writes made meanwhile.
+         *
+         * @param ctx
+         * @param e
+         * @throws Exception
+         */
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            synchronized (HttpPipeliningHandler.this) {
+                batching = true;
+            }
+            try {
+                ctx.sendUpstream(e);
+            } finally {
+                synchronized (HttpPipeliningHandler.this) {
+                    batching = false;
+                    flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.fbudassi.neddy.handler;
+
+import com.fbudassi.neddy.NeddyPipelineFactory;
+import com.fbudassi.neddy.config.Config;
+import java.util.zip.Deflater;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692), as Neddy speaks it:
+ * always without context takeover in both directions. Each message is
+ * deflated on its own, so a broadcast frame is deflated only once and the
+ * same compressed frame is written to every listener, and no listener keeps
+ * a compression window while it's idle. Messages shorter than the threshold
+ * are sent as they are.
+ *
+ * @author fbudassi
+ */
+public final class PerMessageDeflate {
+
+    // Configuration variables.
+    private static final boolean ENABLED = Config.getBooleanValue(Config.KEY_DEFLATE_ENABLED);
+    private static final int THRESHOLD = Config.getIntValue(Config.KEY_DEFLATE_THRESHOLD);
+    private static final int LEVEL = Config.getIntValue(Config.KEY_DEFLATE_LEVEL);
+    public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+    private static final String EXTENSION = "permessage-deflate";
+    private static final String EXTENSION_RESPONSE = EXTENSION
+            + "; server_no_context_takeover; client_no_context_takeover";
+    private static final int MAX_WINDOW_BITS = 15;
+    // Every deflated message ends with an empty stored block, not sent.
+    private static final int TAIL_LENGTH = 4;
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(LEVEL, true);
+        }
+    };
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+    /**
+     * Adds the accepted extension to the handshake response and removes
+     * itself.
+     */
+    public static final ChannelHandler HANDSHAKE_HANDLER = new HandshakeHandler();
+
+    /**
+     * Private constructor, it only has static methods.
+     */
+    private PerMessageDeflate() {
+    }
+
+    /**
+     * Checks if the client offered an extension that Neddy can accept.
+     * Offers that ask the server for a window smaller than the one of zlib,
+     * or with unknown parameters, are declined.
+     *
+     * @param extensions the Sec-WebSocket-Extensions header of the request
+     * @return
+     */
+    public static boolean isOffered(String extensions) {
+        if (!ENABLED || StringUtils.isBlank(extensions)) {
+            return false;
+        }
+        for (String offer : extensions.split(",")) {
+            String[] parameters = offer.split(";");
+            if (EXTENSION.equalsIgnoreCase(parameters[0].trim()) && isAcceptable(parameters)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param parameters the extension name followed by its parameters
+     * @return
+     */
+    private static boolean isAcceptable(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String name = StringUtils.substringBefore(parameters[i], "=").trim();
+            String value = StringUtils.remove(StringUtils.substringAfter(parameters[i], "=").trim(), '"');
+            if (name.equals("server_max_window_bits")) {
+                if (!value.equals(String.valueOf(MAX_WINDOW_BITS))) {
+                    return false;
+                }
+            } else if (!name.equals("server_no_context_takeover") && !name.equals("client_no_context_takeover")
+                    && !name.equals("client_max_window_bits")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deflates the payload of a message, if it's worth it.
+     *
+     * @param payload
+     * @return the deflated payload, or null if it's shorter than the
+     * threshold or deflating it doesn't make it shorter
+     */
+    public static ChannelBuffer deflate(ChannelBuffer payload) {
+        int length = payload.readableBytes();
+        if (length < THRESHOLD) {
+            return null;
+        }
+
+        Deflater deflater = DEFLATER.get();
+        byte[] chunk = CHUNK.get();
+        if (payload.hasArray()) {
+            deflater.setInput(payload.array(), payload.arrayOffset() + payload.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            payload.getBytes(payload.readerIndex(), input);
+            deflater.setInput(input);
+        }
+        ChannelBuffer deflated = ChannelBuffers.dynamicBuffer(length / 2 + TAIL_LENGTH);
+        int written;
+        do {
+            written = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            deflated.writeBytes(chunk, 0, written);
+        } while (written == chunk.length);
+        deflater.reset();
+
+        int deflatedLength = deflated.readableBytes() - TAIL_LENGTH;
+        return deflatedLength < length ? deflated.slice(0, deflatedLength) : null;
+    }
+
+    /**
+     * Writes the accepted extension in the handshake response.
+     */
+    @Sharable
+    private static class HandshakeHandler extends SimpleChannelDownstreamHandler {
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof HttpResponse) {
+                ((HttpResponse) e.getMessage()).setHeader(SEC_WEBSOCKET_EXTENSIONS, EXTENSION_RESPONSE);
+                ctx.getPipeline().remove(NeddyPipelineFactory.HANDLER_WS_EXTENSIONS);
+            }
+            ctx.sendDownstream(e);
+        }
+    }
+}
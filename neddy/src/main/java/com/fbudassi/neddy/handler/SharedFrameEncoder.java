@@ -0,0 +1,46 @@
+package com.fbudassi.neddy.handler;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+
+/**
+ * Server side frame encoder of the WebSocket versions 07, 08 and 13, which
+ * share the same framing. Shared frames are already encoded, so they are
+ * written as they are, in the protocol of the listener and deflated if it
+ * negotiated permessage-deflate; the rest are encoded as usual.
+ *
+ * @author fbudassi
+ */
+public class SharedFrameEncoder extends WebSocket13FrameEncoder {
+
+    private final boolean deflate;
+    private final boolean binary;
+
+    /**
+     * Constructor.
+     *
+     * @param deflate true if the listener negotiated permessage-deflate
+     * @param binary true if the listener speaks the binary protocol
+     */
+    public SharedFrameEncoder(boolean deflate, boolean binary) {
+        super(false);
+        this.deflate = deflate;
+        this.binary = binary;
+    }
+
+    /**
+     * @param ctx
+     * @param channel
+     * @param msg
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (msg instanceof SharedTextWebSocketFrame) {
+            return ((SharedTextWebSocketFrame) msg).getEncoded(binary, deflate);
+        }
+        return super.encode(ctx, channel, msg);
+    }
+}
@@ -0,0 +1,272 @@
+package com.fbudassi.neddy.handler;
+
+import com.fbudassi.neddy.action.BinaryProtocol;
+import com.fbudassi.neddy.action.bean.ResponseBean;
+import com.google.gson.Gson;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Text frame written to many channels at once. Its wire format (RFC 6455,
+ * unmasked, as a server sends it) is encoded only once, into a read-only
+ * buffer, and every channel gets a duplicate of it from the
+ * SharedFrameEncoder instead of framing the payload again. Channels with
+ * other encoders still see a plain text frame. It must not be modified after
+ * its creation. It also knows the category it was sent to, so a listener
+ * that can't keep up may skip the older messages of a category, and if it's a
+ * batch of coalesced messages. The listeners that negotiated
+ * permessage-deflate or the binary protocol get other encodings of the same
+ * messages, made once too, the first time one of them needs it.
+ *
+ * @author fbudassi
+ */
+public class SharedTextWebSocketFrame extends TextWebSocketFrame {
+
+    private static final int FIN_TEXT = 0x81;
+    private static final int FIN_BINARY = 0x82;
+    private static final int RSV1 = 0x40;
+    // Indexes of the encodings, plus one for the deflated ones.
+    private static final int TEXT = 0;
+    private static final int BINARY = 2;
+    private final AtomicReferenceArray<ChannelBuffer> encodings = new AtomicReferenceArray<ChannelBuffer>(4);
+    private final String text;
+    private final String category;
+    private final ResponseBean response;
+    private final List<SharedTextWebSocketFrame> messages;
+
+    /**
+     * Constructor of a frame with one message.
+     *
+     * @param response
+     */
+    public SharedTextWebSocketFrame(ResponseBean response) {
+        this(new Gson().toJson(response), response.getCategory(), response, null);
+    }
+
+    /**
+     * Constructor of a frame with one message that was kept encoded, reusing
+     * the encoding and decoding the message back from it.
+     *
+     * @param encoded the Json encoding of a frame with one message
+     * @param categoryId the id of the category of the message, not encoded
+     */
+    public SharedTextWebSocketFrame(ChannelBuffer encoded, int categoryId) {
+        super(getPayload(encoded));
+        this.text = getBinaryData().toString(CharsetUtil.UTF_8);
+        this.response = new Gson().fromJson(text, ResponseBean.class);
+        this.response.setCategoryId(categoryId);
+        this.category = response.getCategory();
+        this.messages = null;
+        encodings.set(TEXT, encoded);
+    }
+
+    /**
+     * Constructor of a batch of coalesced messages, a Json array of them.
+     *
+     * @param messages frames of one message each
+     */
+    public SharedTextWebSocketFrame(List<SharedTextWebSocketFrame> messages) {
+        this(toJsonArray(messages), getCommonCategory(messages), null, messages);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param text
+     * @param category null if it's a batch of mixed categories
+     * @param response the message, null if it's a batch
+     * @param messages the messages of a batch, null if it isn't one
+     */
+    private SharedTextWebSocketFrame(String text, String category, ResponseBean response,
+            List<SharedTextWebSocketFrame> messages) {
+        super(text);
+        this.text = text;
+        this.category = category;
+        this.response = response;
+        this.messages = messages;
+        encodings.set(TEXT, encode(FIN_TEXT, getBinaryData()));
+    }
+
+    /**
+     * Gets the text without decoding the payload again.
+     *
+     * @return
+     */
+    @Override
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Gets a new view of the encoded frame, with its own indexes.
+     *
+     * @param binary true for the binary protocol, false for Json
+     * @param deflate true to get it deflated, if it's worth deflating it
+     * @return
+     */
+    public ChannelBuffer getEncoded(boolean binary, boolean deflate) {
+        return getEncoding((binary ? BINARY : TEXT) + (deflate ? 1 : 0)).duplicate();
+    }
+
+    /**
+     * Gets an encoding, making it the first time.
+     *
+     * @param index
+     * @return
+     */
+    private ChannelBuffer getEncoding(int index) {
+        ChannelBuffer frame = encodings.get(index);
+        if (frame == null) {
+            // Encoded only once, even if many I/O threads need it at once.
+            synchronized (this) {
+                frame = encodings.get(index);
+                if (frame == null) {
+                    frame = makeEncoding(index);
+                    encodings.set(index, frame);
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * @param index
+     * @return
+     */
+    private ChannelBuffer makeEncoding(int index) {
+        if (index == BINARY) {
+            return encode(FIN_BINARY, getRecords());
+        }
+        // Deflated encodings.
+        ChannelBuffer plain = getEncoding(index - 1);
+        ChannelBuffer payload = PerMessageDeflate.deflate(index - 1 == BINARY ? getRecords() : getBinaryData());
+        return payload == null ? plain : encode((index - 1 == BINARY ? FIN_BINARY : FIN_TEXT) | RSV1, payload);
+    }
+
+    /**
+     * @return the binary protocol records of the messages
+     */
+    private ChannelBuffer getRecords() {
+        if (messages == null) {
+            return BinaryProtocol.encodeResponse(response);
+        }
+        ChannelBuffer[] records = new ChannelBuffer[messages.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = messages.get(i).getRecords();
+        }
+        return ChannelBuffers.wrappedBuffer(records);
+    }
+
+    /**
+     * @return the category the frame was sent to
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * @return the sequence number of the message, or of the last one of a
+     * batch, 0 if it has none
+     */
+    public long getSeq() {
+        if (messages != null) {
+            return messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getSeq();
+        }
+        return response.getSeq() == null ? 0 : response.getSeq();
+    }
+
+    /**
+     * @return true if it's a batch of coalesced messages
+     */
+    public boolean isBatch() {
+        return messages != null;
+    }
+
+    /**
+     * @return the length of the encoded frame
+     */
+    public int getEncodedLength() {
+        return encodings.get(TEXT).readableBytes();
+    }
+
+    /**
+     * Gets the length of the frame a listener is written, making its encoding
+     * the first time.
+     *
+     * @param binary true for the binary protocol, false for Json
+     * @param deflate true if it's deflated, if it's worth deflating it
+     * @return
+     */
+    public int getEncodedLength(boolean binary, boolean deflate) {
+        return getEncoding((binary ? BINARY : TEXT) + (deflate ? 1 : 0)).readableBytes();
+    }
+
+    /**
+     * @param messages
+     * @return the Json array of the messages
+     */
+    private static String toJsonArray(List<SharedTextWebSocketFrame> messages) {
+        StringBuilder array = new StringBuilder("[");
+        for (SharedTextWebSocketFrame message : messages) {
+            if (array.length() > 1) {
+                array.append(',');
+            }
+            array.append(message.getText());
+        }
+        return array.append(']').toString();
+    }
+
+    /**
+     * @param messages
+     * @return the category of all the messages, null if they are mixed
+     */
+    private static String getCommonCategory(List<SharedTextWebSocketFrame> messages) {
+        String common = messages.isEmpty() ? null : messages.get(0).getCategory();
+        for (SharedTextWebSocketFrame message : messages) {
+            if (!StringUtils.equals(common, message.getCategory())) {
+                return null;
+            }
+        }
+        return common;
+    }
+
+    /**
+     * @param encoded a frame encoded by this class
+     * @return a view of its payload
+     */
+    private static ChannelBuffer getPayload(ChannelBuffer encoded) {
+        int lengthBits = encoded.getUnsignedByte(encoded.readerIndex() + 1);
+        int headerLength = lengthBits <= 125 ? 2 : lengthBits == 126 ? 4 : 10;
+        return encoded.slice(encoded.readerIndex() + headerLength, encoded.readableBytes() - headerLength);
+    }
+
+    /**
+     * Encodes a final frame with the payload passed as parameter.
+     *
+     * @param firstByte the FIN bit, the RSV bits and the opcode
+     * @param payload
+     * @return a read-only direct buffer
+     */
+    private static ChannelBuffer encode(int firstByte, ChannelBuffer payload) {
+        int length = payload.readableBytes();
+        int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ChannelBuffer frame = ChannelBuffers.directBuffer(headerLength + length);
+        frame.writeByte(firstByte);
+        if (length <= 125) {
+            frame.writeByte(length);
+        } else if (length <= 0xFFFF) {
+            frame.writeByte(126);
+            frame.writeShort(length);
+        } else {
+            frame.writeByte(127);
+            frame.writeLong(length);
+        }
+        frame.writeBytes(payload, payload.readerIndex(), length);
+        return ChannelBuffers.unmodifiableBuffer(frame);
+    }
+}
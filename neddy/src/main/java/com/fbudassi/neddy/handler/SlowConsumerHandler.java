@@ -0,0 +1,286 @@
+package com.fbudassi.neddy.handler;
+
+import com.fbudassi.neddy.config.Config;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Bounds what a WebSocket listener that doesn't read its messages can cost.
+ * While the channel isn't writable, its writes are held here instead of
+ * growing the write buffer of the channel, and they are sent when it
+ * becomes writable again. When the held bytes go over the high-water mark,
+ * the configured policy makes room: dropping the oldest or the newest
+ * broadcast frames, replacing the older frames of the same category or
+ * disconnecting the listener with a close code. Only broadcast frames are
+ * ever dropped, the responses to the listener are always sent.
+ *
+ * @author fbudassi
+ */
+public class SlowConsumerHandler extends SimpleChannelHandler {
+
+    /**
+     * What to do when a listener holds too many bytes.
+     */
+    public enum Policy {
+
+        DROP_OLDEST, DROP_NEWEST, CONFLATE, DISCONNECT
+    }
+    // Configuration variables.
+    private static final Policy POLICY = Policy.valueOf(Config.getValue(Config.KEY_SLOWCONSUMER_POLICY).trim().toUpperCase());
+    private static final int HIGH_WATER_MARK = Config.getIntValue(Config.KEY_SLOWCONSUMER_HIGHWATERMARK);
+    private static final int CLOSE_CODE = Config.getIntValue(Config.KEY_SLOWCONSUMER_CLOSECODE);
+    // The failure of the writes dropped by the policy, counted only by the monitor.
+    private static final DroppedWriteException DROPPED = new DroppedWriteException();
+    private final SlowConsumerMonitor monitor = SlowConsumerMonitor.getInstance();
+    private final Deque<MessageEvent> held = new ArrayDeque<MessageEvent>();
+    private ChannelHandlerContext ctx;
+    private volatile long heldBytes;
+    // When the listener last took a held frame, or started holding them; 0 if it isn't.
+    private volatile long stalledSince;
+    // The encoding of the shared frames the listener is written.
+    private volatile boolean binary;
+    private volatile boolean deflate;
+    private boolean disconnected;
+
+    /**
+     * Sets the encoding of the shared frames the listener is written, known
+     * once the handshake selects it, so they are charged what they take.
+     *
+     * @param binary true if the listener speaks the binary protocol
+     * @param deflate true if the listener negotiated permessage-deflate
+     */
+    public void setEncoding(boolean binary, boolean deflate) {
+        this.binary = binary;
+        this.deflate = deflate;
+    }
+
+    /**
+     * Sends a write right away if nothing is held and the channel is
+     * writable, otherwise it's held.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public synchronized void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        this.ctx = ctx;
+        if (held.isEmpty() && ctx.getChannel().isWritable() || disconnected) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        if (stalledSince == 0) {
+            stalledSince = System.currentTimeMillis();
+            monitor.stalled(this);
+        }
+        if (e.getMessage() instanceof SharedTextWebSocketFrame && heldBytes + getSize(e) > HIGH_WATER_MARK
+                && !makeRoom(e)) {
+            return;
+        }
+        held.add(e);
+        heldBytes += getSize(e);
+    }
+
+    /**
+     * Sends the held writes when the channel becomes writable.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        flush();
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Fails the held writes.
+     *
+     * @param ctx
+     * @param e
+     * @throws Exception
+     */
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            for (MessageEvent write : held) {
+                write.getFuture().setFailure(new ClosedChannelException());
+            }
+            held.clear();
+            heldBytes = 0;
+            stalledSince = 0;
+        }
+        monitor.resumed(this);
+        ctx.sendUpstream(e);
+    }
+
+    /**
+     * Sends the held writes while the channel is writable. A listener that
+     * takes any of them isn't stalled, even if it stays behind.
+     */
+    synchronized void flush() {
+        if (ctx == null) {
+            return;
+        }
+        Channel channel = ctx.getChannel();
+        boolean sent = false;
+        while (!held.isEmpty() && channel.isWritable()) {
+            MessageEvent write = held.poll();
+            heldBytes -= getSize(write);
+            ctx.sendDownstream(write);
+            sent = true;
+        }
+        if (held.isEmpty() && stalledSince != 0) {
+            stalledSince = 0;
+            monitor.resumed(this);
+        } else if (sent && stalledSince != 0) {
+            stalledSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Makes room for a new broadcast frame following the policy.
+     *
+     * @param e the write of the new frame
+     * @return true if the frame has to be held
+     */
+    private boolean makeRoom(MessageEvent e) {
+        switch (POLICY) {
+            case DROP_NEWEST:
+                drop(e);
+                monitor.droppedNewest();
+                return false;
+            case CONFLATE:
+                String category = ((SharedTextWebSocketFrame) e.getMessage()).getCategory();
+                Iterator<MessageEvent> sameCategory = held.iterator();
+                // Batches of mixed categories are never replaced.
+                while (category != null && sameCategory.hasNext()) {
+                    MessageEvent write = sameCategory.next();
+                    if (write.getMessage() instanceof SharedTextWebSocketFrame
+                            && StringUtils.equals(((SharedTextWebSocketFrame) write.getMessage()).getCategory(), category)) {
+                        sameCategory.remove();
+                        heldBytes -= getSize(write);
+                        drop(write);
+                        monitor.conflated();
+                    }
+                }
+                // Other categories make room as DROP_OLDEST does.
+                dropOldest(e);
+                return true;
+            case DISCONNECT:
+                drop(e);
+                if (disconnect("Slow consumer")) {
+                    monitor.disconnected();
+                }
+                return false;
+            default:
+                dropOldest(e);
+                return true;
+        }
+    }
+
+    /**
+     * Drops the oldest broadcast frames until the new one fits.
+     *
+     * @param e
+     */
+    private void dropOldest(MessageEvent e) {
+        Iterator<MessageEvent> oldest = held.iterator();
+        while (heldBytes + getSize(e) > HIGH_WATER_MARK && oldest.hasNext()) {
+            MessageEvent write = oldest.next();
+            if (write.getMessage() instanceof SharedTextWebSocketFrame) {
+                oldest.remove();
+                heldBytes -= getSize(write);
+                drop(write);
+                monitor.droppedOldest();
+            }
+        }
+    }
+
+    /**
+     * Sends a close frame with the configured code and closes the channel,
+     * dropping the held frames. The close frame won't get through a stalled
+     * connection, but it's the polite thing to do.
+     *
+     * @param reason
+     * @return false if it was already disconnected
+     */
+    synchronized boolean disconnect(String reason) {
+        if (ctx == null || disconnected) {
+            return false;
+        }
+        disconnected = true;
+        for (MessageEvent write : held) {
+            drop(write);
+        }
+        held.clear();
+        heldBytes = 0;
+        Channel channel = ctx.getChannel();
+        Channels.write(ctx, Channels.future(channel), new CloseWebSocketFrame(CLOSE_CODE, reason));
+        Channels.close(ctx, Channels.future(channel));
+        return true;
+    }
+
+    /**
+     * @param write a write that won't be sent
+     */
+    private static void drop(MessageEvent write) {
+        write.getFuture().setFailure(DROPPED);
+    }
+
+    /**
+     * @param write
+     * @return the bytes the write will take
+     */
+    private int getSize(MessageEvent write) {
+        Object message = write.getMessage();
+        if (message instanceof SharedTextWebSocketFrame) {
+            return ((SharedTextWebSocketFrame) message).getEncodedLength(binary, deflate);
+        } else if (message instanceof WebSocketFrame) {
+            ChannelBuffer data = ((WebSocketFrame) message).getBinaryData();
+            return data == null ? 0 : data.readableBytes();
+        } else if (message instanceof ChannelBuffer) {
+            return ((ChannelBuffer) message).readableBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the bytes held
+     */
+    long getHeldBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * @param now
+     * @return how long it has been holding frames without taking any, in ms
+     */
+    long getStalledTime(long now) {
+        long since = stalledSince;
+        return since == 0 ? 0 : now - since;
+    }
+
+    /**
+     * @return the address of the listener
+     */
+    SocketAddress getRemoteAddress() {
+        ChannelHandlerContext context = ctx;
+        return context == null ? null : context.getChannel().getRemoteAddress();
+    }
+}
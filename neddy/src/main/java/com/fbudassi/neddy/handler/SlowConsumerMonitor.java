@@ -0,0 +1,212 @@
+package com.fbudassi.neddy.handler;
+
+import com.fbudassi.neddy.config.Config;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Keeps track of the listeners that can't keep up with the messages sent to
+ * them, the ones whose SlowConsumerHandler is holding frames. It reaps the
+ * ones that stay stalled for longer than the write timeout, and keeps the
+ * statistics of every slow consumer policy.
+ *
+ * @author fbudassi
+ */
+public class SlowConsumerMonitor {
+
+    // Configuration variables.
+    private static final int WRITE_TIMEOUT = Config.getIntValue(Config.KEY_SLOWCONSUMER_WRITETIMEOUT);
+    private static final int LAGGARDS = Config.getIntValue(Config.KEY_SLOWCONSUMER_LAGGARDS);
+    // How often the stalled listeners are checked, in ms.
+    private static final int CHECK_PERIOD = 1000;
+    private static SlowConsumerMonitor INSTANCE = new SlowConsumerMonitor();
+    private final Set<SlowConsumerHandler> stalled = Collections.newSetFromMap(
+            new ConcurrentHashMap<SlowConsumerHandler, Boolean>());
+    // Statistic variables.
+    private final AtomicLong droppedOldest = new AtomicLong();
+    private final AtomicLong droppedNewest = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private SlowConsumerMonitor() {
+    }
+
+    /**
+     * Gets the unique SlowConsumerMonitor instance.
+     *
+     * @return
+     */
+    public static SlowConsumerMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Starts checking the stalled listeners periodically.
+     *
+     * @param timer
+     */
+    public void start(Timer timer) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                checkStalled();
+                if (!timeout.isCancelled()) {
+                    timeout.getTimer().newTimeout(this, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param handler the handler of a listener that started holding frames
+     */
+    void stalled(SlowConsumerHandler handler) {
+        stalled.add(handler);
+    }
+
+    /**
+     * @param handler the handler of a listener that caught up or was closed
+     */
+    void resumed(SlowConsumerHandler handler) {
+        stalled.remove(handler);
+    }
+
+    /**
+     * Writes what the stalled listeners can take, in case a change of their
+     * writability went unnoticed, and disconnects the ones stalled for too
+     * long.
+     */
+    private void checkStalled() {
+        long now = System.currentTimeMillis();
+        for (SlowConsumerHandler handler : stalled) {
+            handler.flush();
+            if (WRITE_TIMEOUT > 0 && handler.getStalledTime(now) > WRITE_TIMEOUT
+                    && handler.disconnect("Write timeout")) {
+                writeTimeouts.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Counts a frame dropped because it was the oldest one.
+     */
+    void droppedOldest() {
+        droppedOldest.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame dropped because it was the newest one.
+     */
+    void droppedNewest() {
+        droppedNewest.incrementAndGet();
+    }
+
+    /**
+     * Counts a frame replaced by a newer one of its category.
+     */
+    void conflated() {
+        conflated.incrementAndGet();
+    }
+
+    /**
+     * Counts a listener disconnected because it fell too far behind.
+     */
+    void disconnected() {
+        disconnects.incrementAndGet();
+    }
+
+    /**
+     * @return the number of frames dropped because they were the oldest ones
+     */
+    public long getDroppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return the number of frames dropped because they were the newest ones
+     */
+    public long getDroppedNewest() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one of its category
+     */
+    public long getConflated() {
+        return conflated.get();
+    }
+
+    /**
+     * @return the number of listeners disconnected because they fell too far
+     * behind
+     */
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    /**
+     * @return the number of listeners disconnected because they stayed
+     * stalled for too long
+     */
+    public long getWriteTimeouts() {
+        return writeTimeouts.get();
+    }
+
+    /**
+     * Describes the stalled listeners holding the most bytes.
+     *
+     * @return
+     */
+    public String[] getLaggards() {
+        List<SlowConsumerHandler> handlers = new ArrayList<SlowConsumerHandler>(stalled);
+        final List<Long> heldBytes = new ArrayList<Long>(handlers.size());
+        for (SlowConsumerHandler handler : handlers) {
+            heldBytes.add(handler.getHeldBytes());
+        }
+        List<Integer> order = new ArrayList<Integer>(handlers.size());
+        for (int i = 0; i < handlers.size(); i++) {
+            order.add(i);
+        }
+        // Sort on a snapshot of the held bytes, they change meanwhile.
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return heldBytes.get(b).compareTo(heldBytes.get(a));
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        String[] laggards = new String[Math.min(LAGGARDS, order.size())];
+        for (int i = 0; i < laggards.length; i++) {
+            int index = order.get(i);
+            laggards[i] = String.format("%s: %d bytes held, stalled for %d ms",
+                    handlers.get(index).getRemoteAddress(), heldBytes.get(index),
+                    handlers.get(index).getStalledTime(now));
+        }
+        return laggards;
+    }
+}
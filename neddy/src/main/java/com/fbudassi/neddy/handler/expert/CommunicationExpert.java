@@ -40,6 +40,9 @@ public abstract class CommunicationExpert {
      */
     protected static void logRequestInfo(Logger logger, Channel channel, HttpRequest request) {
         // Log client information and URI requested.
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
         String remoteAddress = channel.getRemoteAddress().toString();
         String userAgent = request.getHeader(HttpHeaders.Names.USER_AGENT);
         logger.debug("{} - {} - requested: {} {}",
@@ -106,7 +106,7 @@ public class RestExpert extends CommunicationExpert {
 
         // Let's check if the resource is valid.
         if (resource == null) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.BAD_REQUEST);
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.BAD_REQUEST);
             return;
         }
 
@@ -135,7 +135,7 @@ public class RestExpert extends CommunicationExpert {
             method = CategoryHttpMethodEnum.valueOf(request.getMethod().getName());
         } catch (IllegalArgumentException iaex) {
             // Method is not allowed.
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
             return;
         }
 
@@ -154,7 +154,7 @@ public class RestExpert extends CommunicationExpert {
                 break;
             default:
                 //This should never happen (it's impossible to), but just in case :)
-                HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+                HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
         }
     }
 
@@ -171,7 +171,7 @@ public class RestExpert extends CommunicationExpert {
             method = CategoryHttpMethodEnum.valueOf(request.getMethod().getName());
         } catch (IllegalArgumentException iaex) {
             // Method is not allowed.
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
             return;
         }
 
@@ -184,7 +184,7 @@ public class RestExpert extends CommunicationExpert {
                 break;
             default:
                 //This should never happen (it's impossible to), but just in case :)
-                HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+                HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
         }
     }
 
@@ -1,14 +1,31 @@
 package com.fbudassi.neddy.handler.expert;
 
 import com.fbudassi.neddy.config.Config;
-import com.fbudassi.neddy.config.DirectoryIndex;
 import com.fbudassi.neddy.handler.HandlerUtil;
+import com.fbudassi.neddy.handler.HttpPipeliningHandler;
+import com.fbudassi.neddy.handler.HttpPipeliningHandler.PipelinedResponse;
+import com.fbudassi.neddy.staticcontent.AssetPack;
+import com.fbudassi.neddy.staticcontent.AssetPackManager;
+import com.fbudassi.neddy.staticcontent.CompressedVariantCache;
+import com.fbudassi.neddy.staticcontent.CompressedVariantCache.CompressedVariant;
+import com.fbudassi.neddy.staticcontent.FileChannelPool;
+import com.fbudassi.neddy.staticcontent.FileChannelPool.PooledChannel;
+import com.fbudassi.neddy.staticcontent.FileChannelPool.PooledFileRegion;
+import com.fbudassi.neddy.staticcontent.HeaderBlock;
+import com.fbudassi.neddy.staticcontent.PathResolver;
+import com.fbudassi.neddy.staticcontent.PreconditionUtil;
+import com.fbudassi.neddy.staticcontent.RangeUtil;
+import com.fbudassi.neddy.staticcontent.RangeUtil.ByteRange;
+import com.fbudassi.neddy.staticcontent.ResolvedPath;
+import com.fbudassi.neddy.staticcontent.StaticFileCache;
+import com.fbudassi.neddy.staticcontent.StaticFileCache.CachedFile;
 import com.fbudassi.neddy.util.DateUtil;
-import java.io.*;
-import java.net.URLDecoder;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import javax.activation.FileTypeMap;
-import javax.activation.MimetypesFileTypeMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 import org.slf4j.Logger;
@@ -22,12 +39,10 @@ import org.slf4j.LoggerFactory;
 public class StaticContentExpert extends CommunicationExpert {
 
     private static final Logger logger = LoggerFactory.getLogger(StaticContentExpert.class);
-    // Some configuration variables.
-    private static final String WWWROOT = Config.getValue(Config.KEY_WWWROOT);
-    // Collection with mime types.
-    private static final FileTypeMap MIME_TYPES = MimetypesFileTypeMap.getDefaultFileTypeMap();
-    // List of default names of index files.
-    private static final List<String> DEFAULT_NAMES = DirectoryIndex.getFileNames();
+    // Contents up to this size are written in the same buffer as the headers.
+    private static final int INLINE_MAXSIZE = Config.getIntValue(Config.KEY_INLINE_MAXSIZE);
+    // Size of the chunks of the files that can't be sent with zero-copy, one TLS record each.
+    private static final int CHUNK_SIZE = 16384;
 
     //Allowed Http Methods.
     private enum AllowedHttpMethodEnum {
@@ -55,7 +70,7 @@ public class StaticContentExpert extends CommunicationExpert {
             method = AllowedHttpMethodEnum.valueOf(request.getMethod().getName());
         } catch (IllegalArgumentException iaex) {
             // Method is not allowed.
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
             return;
         }
 
@@ -71,7 +86,7 @@ public class StaticContentExpert extends CommunicationExpert {
                 break;
             default:
                 //This should never happen (it's impossible to), but just in case :)
-                HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+                HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
         }
     }
 
@@ -83,60 +98,277 @@ public class StaticContentExpert extends CommunicationExpert {
      * @throws Exception
      */
     private static void handleGet(ChannelHandlerContext ctx, HttpRequest request) throws Exception {
-        // Check for file validity.
-        final String path = WWWROOT + sanitizeUri(request.getUri());
-        if (path == null) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.FORBIDDEN);
+        // Check for file validity and choose what to send.
+        Representation representation = selectRepresentation(ctx, request);
+        if (representation == null) {
             return;
         }
+        ResolvedPath resolvedPath = representation.getResolvedPath();
+        CachedFile cachedFile = representation.getContent();
 
-        File file = new File(path);
-        if (file.isHidden() || !file.exists()) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.NOT_FOUND);
+        // Answer conditional requests without the file when possible.
+        if (handlePreconditions(ctx, request, resolvedPath)) {
             return;
         }
 
-        if (file.isDirectory()) {
-            // Look for a valid index file in the directory (e.g. index.html).
-            for (String fileName : DEFAULT_NAMES) {
-                File indexFile = new File(path + fileName);
-                if (indexFile.exists() && indexFile.isFile() && !indexFile.isHidden()) {
-                    file = indexFile;
-                    break;
-                }
-            }
+        // Get the requested ranges of the file, if any.
+        List<ByteRange> ranges = RangeUtil.getRanges(request, resolvedPath);
+        if (ranges != null && ranges.isEmpty()) {
+            sendRangeNotSatisfiable(ctx, request, resolvedPath);
+            return;
         }
 
-        if (!file.isFile()) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.FORBIDDEN);
+        // Hot files are served from memory.
+        if (cachedFile == null) {
+            cachedFile = StaticFileCache.getInstance().get(resolvedPath);
+        }
+        if (cachedFile == null) {
+            // Concurrent misses of the file are answered when its only load finishes.
+            PipelinedResponse response = HttpPipeliningHandler.defer(ctx.getChannel());
+            StaticFileCache.getInstance().load(resolvedPath,
+                    new FileLoadListener(ctx, request, resolvedPath, ranges, response));
             return;
         }
 
-        // Open file.
-        RandomAccessFile raf;
+        sendCachedFile(ctx, request, resolvedPath, cachedFile, ranges);
+    }
+
+    /**
+     * Sends a file cached in memory, or just the requested ranges of it. The
+     * content is sliced from the cached buffer, never copied.
+     *
+     * @param ctx
+     * @param request
+     * @param resolvedPath
+     * @param cachedFile
+     * @param ranges the requested ranges, null to send the whole file
+     */
+    private static void sendCachedFile(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath,
+            CachedFile cachedFile, List<ByteRange> ranges) {
+        ChannelBuffer content = cachedFile.getContent();
+        HttpResponse response = null;
+        ChannelBuffer body;
+        if (ranges == null) {
+            body = content;
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response = buildGetResponseHeaders(request, resolvedPath, range.getLength());
+            response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_RANGE, range.toContentRange(resolvedPath.getLength()));
+            body = content.slice((int) range.getStart(), (int) range.getLength());
+        } else {
+            // Build the multipart body out of small header buffers and slices of the content.
+            List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+            for (ByteRange range : ranges) {
+                parts.add(RangeUtil.buildPartHeader(range, resolvedPath.getMimeType(), resolvedPath.getLength()));
+                parts.add(content.slice((int) range.getStart(), (int) range.getLength()));
+            }
+            parts.add(RangeUtil.buildClosingBoundary());
+            body = ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()]));
+
+            response = buildGetResponseHeaders(request, resolvedPath, body.readableBytes());
+            response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_TYPE, RangeUtil.MULTIPART_BYTERANGES);
+        }
+
+        // The headers of a full response are already encoded.
+        ChannelBuffer headers = response == null
+                ? HeaderBlock.getOkHeaders(resolvedPath, HttpHeaders.isKeepAlive(request))
+                : HandlerUtil.encodeHeaders(response);
+
+        // Write the initial line, the header and the content in a single gathering write.
+        // The encoded buffer skips the HttpResponseEncoder.
+        ChannelFuture writeFuture = ctx.getChannel().write(ChannelBuffers.wrappedBuffer(true, headers, body));
+
+        // Decide whether to close the connection or not.
+        if (!HttpHeaders.isKeepAlive(request)) {
+            // Close the connection when the whole content is written out.
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Sends a file that is not cached in memory, or just the requested ranges
+     * of it.
+     *
+     * @param ctx
+     * @param request
+     * @param resolvedPath
+     * @param ranges the requested ranges, null to send the whole file
+     * @throws IOException
+     */
+    private static void sendFile(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath,
+            List<ByteRange> ranges) throws IOException {
+        sendFile(ctx, request, resolvedPath, ranges, false);
+    }
+
+    /**
+     * Sends a file that is not cached in memory. If the file changed after it
+     * was resolved, it's resolved again next time, and the new version is
+     * sent whole, without the validators of the old one.
+     *
+     * @param ctx
+     * @param request
+     * @param resolvedPath
+     * @param ranges the requested ranges, null to send the whole file
+     * @param reopened true if the file is known to have changed
+     * @throws IOException
+     */
+    private static void sendFile(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath,
+            List<ByteRange> ranges, boolean reopened) throws IOException {
+        // Get an open channel of the file from the pool.
+        PooledChannel pooledChannel;
         try {
-            raf = new RandomAccessFile(file, "r");
+            pooledChannel = FileChannelPool.getInstance().acquire(resolvedPath);
         } catch (FileNotFoundException fnfe) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.NOT_FOUND);
+            PathResolver.getInstance().invalidate(request.getUri());
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.NOT_FOUND);
             return;
         }
-        long fileLength = raf.length();
-
-        // Set some HTTP Headers.
-        HttpResponse response = buildGetResponseHeaders(request, file, fileLength);
+        long fileLength = pooledChannel.getSize();
+        boolean changed = reopened || fileLength != resolvedPath.getLength();
+        if (changed) {
+            // The ranges and the validators belong to the old version.
+            PathResolver.getInstance().invalidate(request.getUri());
+            ranges = null;
+        }
 
         // Get client channel to write the response.
         Channel ch = ctx.getChannel();
 
-        // Write the initial line and the header.
-        ch.write(response);
-
         // Use zero-copy (no need to spend time copying buffers) through java.nio filechannels.
-        // The associated file is closed after transfer is complete.
+        // Every region holds a reference to the pooled channel, released after its transfer.
         // It may use DMA to do the transfer or take advantage of another SO capability.
         // See transferTo in: http://download.oracle.com/javase/6/docs/api/java/nio/channels/FileChannel.html
-        final FileRegion region = new DefaultFileRegion(raf.getChannel(), 0, fileLength, true);
+        ChannelFuture writeFuture = null;
+        try {
+            if (ranges == null || ranges.size() == 1) {
+                // Write the initial line and the header, then the whole file or the requested range.
+                ChannelBuffer headers;
+                long position;
+                long count;
+                if (ranges == null) {
+                    if (!changed) {
+                        // The headers of a full response are already encoded.
+                        headers = HeaderBlock.getOkHeaders(resolvedPath, HttpHeaders.isKeepAlive(request));
+                    } else {
+                        HttpResponse response = buildGetResponseHeaders(request, resolvedPath, fileLength);
+                        response.removeHeader(HttpHeaders.Names.LAST_MODIFIED);
+                        response.removeHeader(HttpHeaders.Names.ETAG);
+                        headers = HandlerUtil.encodeHeaders(response);
+                    }
+                    position = 0;
+                    count = fileLength;
+                } else {
+                    ByteRange range = ranges.get(0);
+                    HttpResponse response = buildGetResponseHeaders(request, resolvedPath, range.getLength());
+                    response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+                    HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_RANGE, range.toContentRange(fileLength));
+                    headers = HandlerUtil.encodeHeaders(response);
+                    position = range.getStart();
+                    count = range.getLength();
+                }
+
+                // Small contents are read and written together with the headers.
+                if (count <= INLINE_MAXSIZE) {
+                    ChannelBuffer content = pooledChannel.read(position, (int) count);
+                    if (content != null) {
+                        writeFuture = ch.write(ChannelBuffers.wrappedBuffer(true, headers, content));
+                    }
+                } else {
+                    ch.write(headers);
+                    writeFuture = writeRegion(ch, pooledChannel, position, count);
+                }
+            } else {
+                // Every part is a small header buffer followed by a region of the file.
+                List<ChannelBuffer> partHeaders = new ArrayList<ChannelBuffer>();
+                ChannelBuffer closingBoundary = RangeUtil.buildClosingBoundary();
+                long bodyLength = closingBoundary.readableBytes();
+                for (ByteRange range : ranges) {
+                    ChannelBuffer partHeader = RangeUtil.buildPartHeader(range, resolvedPath.getMimeType(), fileLength);
+                    partHeaders.add(partHeader);
+                    bodyLength += partHeader.readableBytes() + range.getLength();
+                }
+
+                HttpResponse response = buildGetResponseHeaders(request, resolvedPath, bodyLength);
+                response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+                HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_TYPE, RangeUtil.MULTIPART_BYTERANGES);
+                ch.write(response);
+                for (int i = 0; i < ranges.size(); i++) {
+                    ByteRange range = ranges.get(i);
+                    ch.write(partHeaders.get(i));
+                    writeRegion(ch, pooledChannel, range.getStart(), range.getLength());
+                }
+                writeFuture = ch.write(closingBoundary);
+            }
+        } finally {
+            // The regions hold their own references.
+            pooledChannel.release();
+        }
+
+        if (writeFuture == null) {
+            // The file got shorter after its channel was opened: nothing was written, so it's sent again.
+            if (changed) {
+                throw new IOException("File changed while being sent: " + resolvedPath.getCanonicalPath());
+            }
+            FileChannelPool.getInstance().fileChanged(resolvedPath.getCanonicalPath());
+            sendFile(ctx, request, resolvedPath, null, true);
+            return;
+        }
+
+        // Decide whether to close the connection or not.
+        if (!HttpHeaders.isKeepAlive(request)) {
+            // Close the connection when the whole content is written out.
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Writes a region of a pooled file, making sure it's released whatever
+     * happens with the write. Under TLS the region is read in chunks instead,
+     * since it has to be encrypted.
+     *
+     * @param ch
+     * @param pooledChannel
+     * @param position
+     * @param count
+     * @return
+     */
+    private static ChannelFuture writeRegion(Channel ch, PooledChannel pooledChannel, long position, long count) {
+        if (HandlerUtil.isSecure(ch)) {
+            return ch.write(pooledChannel.newChunkedInput(position, count, CHUNK_SIZE));
+        }
+        PooledFileRegion region = pooledChannel.newRegion(position, count);
         ChannelFuture writeFuture = ch.write(region);
+        writeFuture.addListener(region);
+        return writeFuture;
+    }
+
+    /**
+     * Answers a request whose ranges are all beyond the end of the file.
+     *
+     * @param ctx
+     * @param request
+     * @param resolvedPath
+     */
+    private static void sendRangeNotSatisfiable(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+
+        // Set some HTTP Headers.
+        HttpHeaders.setHeader(response, HttpHeaders.Names.DATE, DateUtil.getCurrent());
+        HttpHeaders.setHeader(response, HttpHeaders.Names.SERVER, SERVERNAME);
+        HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_RANGE, "bytes */" + resolvedPath.getLength());
+        HttpHeaders.setContentLength(response, 0);
+
+        // Set keepalive headers.
+        if (HttpHeaders.isKeepAlive(request)) {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        } else {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+        }
+
+        // Write the initial line and the header.
+        ChannelFuture writeFuture = ctx.getChannel().write(response);
 
         // Decide whether to close the connection or not.
         if (!HttpHeaders.isKeepAlive(request)) {
@@ -175,84 +407,180 @@ public class StaticContentExpert extends CommunicationExpert {
      * @param request
      */
     private void handleHead(ChannelHandlerContext ctx, HttpRequest request) throws IOException {
-        // Check for file validity.
-        final String path = WWWROOT + sanitizeUri(request.getUri());
-        if (path == null) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.FORBIDDEN);
+        // Check for file validity and choose what to send.
+        Representation representation = selectRepresentation(ctx, request);
+        if (representation == null) {
             return;
         }
+        ResolvedPath resolvedPath = representation.getResolvedPath();
 
-        File file = new File(path);
-        if (file.isHidden() || !file.exists()) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.NOT_FOUND);
+        // Answer conditional requests without the file when possible.
+        if (handlePreconditions(ctx, request, resolvedPath)) {
             return;
         }
 
-        if (file.isDirectory()) {
-            // Look for a valid index file in the directory (e.g. index.html).
-            for (String fileName : DEFAULT_NAMES) {
-                File indexFile = new File(path + fileName);
-                if (indexFile.exists() && indexFile.isFile() && !indexFile.isHidden()) {
-                    file = indexFile;
-                    break;
-                }
-            }
+        // Get client channel to write the response.
+        Channel ch = ctx.getChannel();
+
+        // Write the initial line and the header, but not the content of the file, due to a HEAD request.
+        // The headers of a full response are already encoded.
+        ChannelFuture writeFuture = ch.write(HeaderBlock.getOkHeaders(resolvedPath, HttpHeaders.isKeepAlive(request)));
+
+        // Decide whether to close the connection or not.
+        if (!HttpHeaders.isKeepAlive(request)) {
+            // Close the connection when the whole content is written out.
+            writeFuture.addListener(ChannelFutureListener.CLOSE);
         }
+    }
 
-        if (!file.isFile()) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.FORBIDDEN);
-            return;
+    /**
+     * Resolves the requested Uri to the file to be served. If there isn't a
+     * valid file, it sends the corresponding error and returns null.
+     *
+     * @param ctx
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    private static ResolvedPath resolvePath(ChannelHandlerContext ctx, HttpRequest request) throws IOException {
+        ResolvedPath resolvedPath = PathResolver.getInstance().resolve(request.getUri());
+        switch (resolvedPath.getStatus()) {
+            case FOUND:
+                return resolvedPath;
+            case NOT_FOUND:
+                HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.NOT_FOUND);
+                return null;
+            default:
+                HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.FORBIDDEN);
+                return null;
         }
+    }
 
-        // Open file.
-        RandomAccessFile raf;
-        try {
-            raf = new RandomAccessFile(file, "r");
-        } catch (FileNotFoundException fnfe) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.NOT_FOUND);
-            return;
+    /**
+     * Chooses the file to be sent for the requested Uri: a file of the asset
+     * pack or of the WWW root, compressed with one of the content encodings
+     * accepted by the client when possible. If there isn't a valid file, it
+     * sends the corresponding error and returns null.
+     *
+     * @param ctx
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    private static Representation selectRepresentation(ChannelHandlerContext ctx, HttpRequest request) throws IOException {
+        // The asset pack takes precedence over the WWW root.
+        AssetPack.Entry packEntry = AssetPackManager.getInstance().get(request.getUri());
+        ResolvedPath resolvedPath;
+        if (packEntry != null) {
+            resolvedPath = packEntry.getResolvedPath();
+        } else {
+            resolvedPath = resolvePath(ctx, request);
+            if (resolvedPath == null) {
+                return null;
+            }
         }
-        long fileLength = raf.length();
 
-        // Set some HTTP Headers.
-        HttpResponse response = buildGetResponseHeaders(request, file, fileLength);
+        // Choose the content encoding according to the ones accepted by the client.
+        String acceptEncoding = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+        ResolvedPath precompressedPath = resolvedPath.getPrecompressed(acceptEncoding);
+        if (precompressedPath != null) {
+            resolvedPath = precompressedPath;
+        } else {
+            CompressedVariant variant = CompressedVariantCache.getInstance().get(resolvedPath, acceptEncoding);
+            if (variant != null) {
+                return new Representation(variant.getResolvedPath(), variant.getContent());
+            }
+        }
 
-        // Get client channel to write the response.
-        Channel ch = ctx.getChannel();
+        return new Representation(resolvedPath, packEntry == null ? null : packEntry.getContent(resolvedPath));
+    }
 
-        // Write the initial line and the header, but not the content of the file, due to a HEAD request.
-        ChannelFuture writeFuture = ch.write(response);
+    /**
+     * Evaluates the conditional headers of the request. If the file doesn't
+     * have to be sent, it writes the Not Modified or Precondition Failed
+     * response and returns true.
+     *
+     * @param ctx
+     * @param request
+     * @param resolvedPath
+     * @return
+     */
+    private static boolean handlePreconditions(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath) {
+        HttpResponseStatus status = PreconditionUtil.evaluate(request, resolvedPath);
+        if (status == null) {
+            return false;
+        }
+
+        if (status != HttpResponseStatus.NOT_MODIFIED) {
+            HandlerUtil.sendError(ctx.getChannel(), request, status);
+            return true;
+        }
+
+        // Write the initial line and the header, the client already has the content.
+        ChannelFuture writeFuture = ctx.getChannel().write(buildNotModifiedResponse(request, resolvedPath));
 
         // Decide whether to close the connection or not.
         if (!HttpHeaders.isKeepAlive(request)) {
             // Close the connection when the whole content is written out.
             writeFuture.addListener(ChannelFutureListener.CLOSE);
         }
+        return true;
     }
 
     /**
-     * Builds the basic HTTP headers for the GET and HEAD methods.
+     * Builds the HTTP headers of a Not Modified response.
      *
      * @param request
-     * @param file
-     * @param fileLength
+     * @param resolvedPath
      * @return
      */
-    private static HttpResponse buildGetResponseHeaders(HttpRequest request, File file, long fileLength) {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    private static HttpResponse buildNotModifiedResponse(HttpRequest request, ResolvedPath resolvedPath) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+
+        // Set some HTTP Headers.
+        HttpHeaders.setHeader(response, HttpHeaders.Names.DATE, DateUtil.getCurrent());
+        HttpHeaders.setHeader(response, HttpHeaders.Names.SERVER, SERVERNAME);
+        HttpHeaders.setHeader(response, HttpHeaders.Names.LAST_MODIFIED, resolvedPath.getLastModifiedHeader());
+        HttpHeaders.setHeader(response, HttpHeaders.Names.ETAG, resolvedPath.getETag());
+        if (resolvedPath.isNegotiated()) {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        }
 
-        // Get mime type.
-        String mimeType = MIME_TYPES.getContentType(file);
-        if ("text/plain".equals(mimeType)) {
-            mimeType += "; charset=utf-8";
+        // Set keepalive headers.
+        if (HttpHeaders.isKeepAlive(request)) {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        } else {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
         }
 
+        return response;
+    }
+
+    /**
+     * Builds the basic HTTP headers for the GET and HEAD methods.
+     *
+     * @param request
+     * @param resolvedPath
+     * @param contentLength
+     * @return
+     */
+    private static HttpResponse buildGetResponseHeaders(HttpRequest request, ResolvedPath resolvedPath, long contentLength) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
         // Set some HTTP Headers.
         HttpHeaders.setHeader(response, HttpHeaders.Names.DATE, DateUtil.getCurrent());
         HttpHeaders.setHeader(response, HttpHeaders.Names.SERVER, SERVERNAME);
-        HttpHeaders.setHeader(response, HttpHeaders.Names.LAST_MODIFIED, DateUtil.formatDate(file.lastModified()));
-        HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_TYPE, mimeType);
-        HttpHeaders.setContentLength(response, fileLength);
+        HttpHeaders.setHeader(response, HttpHeaders.Names.LAST_MODIFIED, resolvedPath.getLastModifiedHeader());
+        HttpHeaders.setHeader(response, HttpHeaders.Names.ETAG, resolvedPath.getETag());
+        HttpHeaders.setHeader(response, HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+        HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_TYPE, resolvedPath.getMimeType());
+        if (resolvedPath.getContentEncoding() != null) {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.CONTENT_ENCODING, resolvedPath.getContentEncoding());
+        }
+        if (resolvedPath.isNegotiated()) {
+            HttpHeaders.setHeader(response, HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        HttpHeaders.setContentLength(response, contentLength);
 
         // Workaround for Apache Benchmark bug.
         // See http://blog.lolyco.com/sean/2009/11/25/ab-apache-bench-hanging-with-k-keep-alive-switch/
@@ -266,29 +594,95 @@ public class StaticContentExpert extends CommunicationExpert {
     }
 
     /**
-     * Cleans the request Uri.
-     *
-     * @param uri
-     * @return
+     * Answers a request when the load of its file in the cache finishes.
      */
-    private static String sanitizeUri(String uri) throws UnsupportedEncodingException {
-        // Decode the path.
-        try {
-            uri = URLDecoder.decode(uri, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            uri = URLDecoder.decode(uri, "ISO-8859-1");
+    private static class FileLoadListener implements StaticFileCache.LoadListener {
+
+        private final ChannelHandlerContext ctx;
+        private final HttpRequest request;
+        private final ResolvedPath resolvedPath;
+        private final List<ByteRange> ranges;
+        private final PipelinedResponse response;
+
+        /**
+         * Constructor.
+         *
+         * @param ctx
+         * @param request
+         * @param resolvedPath
+         * @param ranges
+         * @param response the deferred response of the request
+         */
+        FileLoadListener(ChannelHandlerContext ctx, HttpRequest request, ResolvedPath resolvedPath,
+                List<ByteRange> ranges, PipelinedResponse response) {
+            this.ctx = ctx;
+            this.request = request;
+            this.resolvedPath = resolvedPath;
+            this.ranges = ranges;
+            this.response = response;
+        }
+
+        /**
+         * Sends the loaded file, or the file from disk if it couldn't be
+         * cached.
+         *
+         * @param cachedFile
+         * @param cause
+         */
+        @Override
+        public void loaded(CachedFile cachedFile, IOException cause) {
+            PipelinedResponse previous = response.resume();
+            try {
+                if (cause instanceof FileNotFoundException) {
+                    PathResolver.getInstance().invalidate(request.getUri());
+                    HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.NOT_FOUND);
+                } else if (cause != null) {
+                    Channels.fireExceptionCaught(ctx, cause);
+                } else if (cachedFile == null) {
+                    // File is too big to be cached.
+                    sendFile(ctx, request, resolvedPath, ranges);
+                } else {
+                    sendCachedFile(ctx, request, resolvedPath, cachedFile, ranges);
+                }
+            } catch (Exception e) {
+                Channels.fireExceptionCaught(ctx, e);
+            } finally {
+                response.complete(previous);
+            }
         }
+    }
 
-        // Convert file separators.
-        uri = uri.replace('/', File.separatorChar);
+    /**
+     * The file chosen to be sent, with its content if it's already in memory.
+     */
+    private static class Representation {
+
+        private final ResolvedPath resolvedPath;
+        private final CachedFile content;
+
+        /**
+         * Constructor.
+         *
+         * @param resolvedPath
+         * @param content the content, null if it's not in memory
+         */
+        Representation(ResolvedPath resolvedPath, CachedFile content) {
+            this.resolvedPath = resolvedPath;
+            this.content = content;
+        }
 
-        // Security checks.
-        if (uri.contains(File.separator + ".")
-                || uri.contains("." + File.separator)
-                || uri.startsWith(".") || uri.endsWith(".")) {
-            return null;
+        /**
+         * @return the resolvedPath
+         */
+        ResolvedPath getResolvedPath() {
+            return resolvedPath;
         }
 
-        return uri;
+        /**
+         * @return the content
+         */
+        CachedFile getContent() {
+            return content;
+        }
     }
 }
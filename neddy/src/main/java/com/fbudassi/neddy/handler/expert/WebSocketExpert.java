@@ -1,10 +1,21 @@
 package com.fbudassi.neddy.handler.expert;
 
 import com.fbudassi.neddy.NeddyPipelineFactory;
+import com.fbudassi.neddy.action.BinaryProtocol;
 import com.fbudassi.neddy.action.ListenerActionHandler;
+import com.fbudassi.neddy.action.bean.ListenerActionBean;
+import com.fbudassi.neddy.action.bean.ResponseBean;
 import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.handler.DeflateFrameDecoder;
 import com.fbudassi.neddy.handler.HandlerUtil;
+import com.fbudassi.neddy.handler.PerMessageDeflate;
+import com.fbudassi.neddy.handler.SharedFrameEncoder;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
+import com.fbudassi.neddy.handler.SlowConsumerHandler;
 import com.google.gson.Gson;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.MessageEvent;
@@ -27,7 +38,13 @@ public class WebSocketExpert extends CommunicationExpert {
     private WebSocketServerHandshaker handshaker;
     // WebSocket path and scheme.
     private static final String WEBSOCKET_SCHEME = "ws";
+    private static final String WEBSOCKET_SECURE_SCHEME = "wss";
     private static final String WEBSOCKET_PATH = Config.getValue(Config.KEY_RESOURCE_LISTENER);
+    // Subprotocols, the first one is the default. Hixie-76 only has Json.
+    private static final String SUBPROTOCOLS = BinaryProtocol.JSON_SUBPROTOCOL + "," + BinaryProtocol.SUBPROTOCOL;
+    private static final String HIXIE_76_SUBPROTOCOLS = BinaryProtocol.JSON_SUBPROTOCOL;
+    // True if the listener speaks the binary protocol.
+    private boolean binary;
 
     /**
      * It handles Websocket requests.
@@ -54,6 +71,17 @@ public class WebSocketExpert extends CommunicationExpert {
         return new TextWebSocketFrame(message);
     }
 
+    /**
+     * Gets a WebSocket Text Frame with a response embedded, encoded only once
+     * for all the channels it's written to, in every protocol.
+     *
+     * @param responseBean
+     * @return
+     */
+    public static SharedTextWebSocketFrame getSharedTextWebSocketFrame(ResponseBean responseBean) {
+        return new SharedTextWebSocketFrame(responseBean);
+    }
+
     /**
      * It specifically handles WebSocket handshakes.
      *
@@ -66,13 +94,15 @@ public class WebSocketExpert extends CommunicationExpert {
 
         // Only GET method is supported here.
         if (request.getMethod() != HttpMethod.GET) {
-            HandlerUtil.sendError(ctx.getChannel(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+            HandlerUtil.sendError(ctx.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED);
             return;
         }
 
         // Upgrade the Http connection to a WebSocket connection.
+        String subprotocols = request.containsHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION)
+                ? SUBPROTOCOLS : HIXIE_76_SUBPROTOCOLS;
         WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                getWebSocketURL(request), null, false);
+                getWebSocketURL(ctx.getChannel(), request), subprotocols, false);
         handshaker = wsFactory.newHandshaker(request);
         if (handshaker == null) {
             wsFactory.sendUnsupportedWebSocketVersionResponse(ctx.getChannel());
@@ -81,7 +111,23 @@ public class WebSocketExpert extends CommunicationExpert {
             pipeline.remove(NeddyPipelineFactory.HANDLER_CHUNKED_WRITE);
             pipeline.remove(NeddyPipelineFactory.HANDLER_IDLE_STATE);
             pipeline.remove(NeddyPipelineFactory.HANDLER_IDLE_KEEP_ALIVE);
-            handshaker.handshake(ctx.getChannel(), request).addListener(WebSocketServerHandshaker.HANDSHAKE_LISTENER);
+            // Nothing is pipelined on a WebSocket. The handshake is at the head
+            // of the line, so its response doesn't need them to go out.
+            HandlerUtil.removeIfPresent(pipeline, NeddyPipelineFactory.HANDLER_PIPELINING);
+            HandlerUtil.removeIfPresent(pipeline, NeddyPipelineFactory.HANDLER_READ_BATCH);
+            SlowConsumerHandler slowConsumerHandler = new SlowConsumerHandler();
+            pipeline.addLast(NeddyPipelineFactory.HANDLER_SLOW_CONSUMER, slowConsumerHandler);
+            // Hixie-76 has no extensions.
+            boolean deflate = handshaker.getVersion() != WebSocketVersion.V00
+                    && PerMessageDeflate.isOffered(request.getHeader(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS));
+            if (deflate) {
+                pipeline.addLast(NeddyPipelineFactory.HANDLER_WS_EXTENSIONS, PerMessageDeflate.HANDSHAKE_HANDLER);
+            }
+            ChannelFuture handshakeFuture = handshaker.handshake(ctx.getChannel(), request);
+            handshakeFuture.addListener(WebSocketServerHandshaker.HANDSHAKE_LISTENER);
+            binary = BinaryProtocol.SUBPROTOCOL.equals(handshaker.getSelectedSubprotocol());
+            slowConsumerHandler.setEncoding(binary, deflate);
+            handshakeFuture.addListener(new SharedFrameEncoderListener(deflate, binary));
         }
     }
 
@@ -99,6 +145,12 @@ public class WebSocketExpert extends CommunicationExpert {
         } else if (frame instanceof PingWebSocketFrame) {
             ctx.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
             return;
+        } else if (frame instanceof BinaryWebSocketFrame && binary) {
+            ListenerActionBean requestBean = BinaryProtocol.decodeAction(frame.getBinaryData());
+            ResponseBean response = ListenerActionHandler.handleRequest(requestBean, ctx.getChannel());
+            ctx.getChannel().write(new BinaryWebSocketFrame(BinaryProtocol.encodeResponse(response)));
+            writeBacklog(ctx.getChannel(), response);
+            return;
         } else if (!(frame instanceof TextWebSocketFrame)) {
             throw new UnsupportedOperationException(String.format("%s frame type not supported.", frame.getClass().getName()));
         }
@@ -106,19 +158,76 @@ public class WebSocketExpert extends CommunicationExpert {
         // Process frame
         Gson gson = new Gson();
         String request = ((TextWebSocketFrame) frame).getText();
-        String response = gson.toJson(ListenerActionHandler.handleRequest(request, ctx.getChannel()));
+        ResponseBean responseBean = ListenerActionHandler.handleRequest(request, ctx.getChannel());
+        String response = gson.toJson(responseBean);
         if (response != null) {
             ctx.getChannel().write(new TextWebSocketFrame(response));
+            writeBacklog(ctx.getChannel(), responseBean);
+        }
+    }
+
+    /**
+     * Writes the messages replayed after a response, if any. Being in the
+     * I/O thread of the channel, they go before any new message.
+     *
+     * @param channel
+     * @param response
+     */
+    private static void writeBacklog(Channel channel, ResponseBean response) {
+        if (response.getBacklog() != null) {
+            for (SharedTextWebSocketFrame message : response.getBacklog()) {
+                channel.write(message);
+            }
+        }
+    }
+
+    /**
+     * Replaces the frame encoder installed by the handshaker with one that
+     * writes shared frames without encoding them again. Hixie-76 connections
+     * keep theirs, since their framing is different. If the listener
+     * negotiated permessage-deflate, it also adds the decoder that inflates
+     * its messages.
+     */
+    private static class SharedFrameEncoderListener implements ChannelFutureListener {
+
+        private final boolean deflate;
+        private final boolean binary;
+
+        /**
+         * Constructor.
+         *
+         * @param deflate
+         * @param binary
+         */
+        SharedFrameEncoderListener(boolean deflate, boolean binary) {
+            this.deflate = deflate;
+            this.binary = binary;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            ChannelPipeline pipeline = future.getChannel().getPipeline();
+            if (future.isSuccess()
+                    && pipeline.get(NeddyPipelineFactory.HANDLER_WS_ENCODER) instanceof WebSocket08FrameEncoder) {
+                pipeline.replace(NeddyPipelineFactory.HANDLER_WS_ENCODER, NeddyPipelineFactory.HANDLER_WS_ENCODER,
+                        new SharedFrameEncoder(deflate, binary));
+                if (deflate) {
+                    pipeline.addBefore(NeddyPipelineFactory.HANDLER_WS_DECODER, NeddyPipelineFactory.HANDLER_WS_INFLATER,
+                            new DeflateFrameDecoder());
+                }
+            }
         }
     }
 
     /**
      * Returns the WebSocket server absolute path.
      *
+     * @param channel
      * @param req
      * @return
      */
-    private static String getWebSocketURL(HttpRequest req) {
-        return WEBSOCKET_SCHEME + "://" + req.getHeader(HttpHeaders.Names.HOST) + "/" + WEBSOCKET_PATH;
+    private static String getWebSocketURL(Channel channel, HttpRequest req) {
+        String scheme = HandlerUtil.isSecure(channel) ? WEBSOCKET_SECURE_SCHEME : WEBSOCKET_SCHEME;
+        return scheme + "://" + req.getHeader(HttpHeaders.Names.HOST) + "/" + WEBSOCKET_PATH;
     }
 }
@@ -0,0 +1,267 @@
+package com.fbudassi.neddy.ssl;
+
+import com.fbudassi.neddy.config.Config;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.handler.ssl.ImmediateExecutor;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the SSLContext used to terminate TLS on both ports, built once from
+ * the configured keystore. The server side session cache of the context is
+ * bounded in size and time, so returning clients resume their sessions with
+ * an abbreviated handshake without the cache growing forever. It also keeps
+ * the statistics of the handshakes.
+ *
+ * @author fbudassi
+ */
+public class SslContextManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(SslContextManager.class);
+    // Configuration variables.
+    private static final boolean ENABLED = Config.getBooleanValue(Config.KEY_SSL_ENABLED);
+    private static final String KEYSTORE = Config.getValue(Config.KEY_SSL_KEYSTORE);
+    private static final String KEYSTORE_TYPE = Config.getValue(Config.KEY_SSL_KEYSTORE_TYPE);
+    private static final String KEYSTORE_PASSWORD = Config.getValue(Config.KEY_SSL_KEYSTORE_PASSWORD);
+    private static final String PROTOCOLS = Config.getValue(Config.KEY_SSL_PROTOCOLS);
+    private static final String CIPHER_SUITES = Config.getValue(Config.KEY_SSL_CIPHERSUITES);
+    private static final int SESSION_CACHE_SIZE = Config.getIntValue(Config.KEY_SSL_SESSIONCACHE_SIZE);
+    private static final int SESSION_CACHE_TIMEOUT = Config.getIntValue(Config.KEY_SSL_SESSIONCACHE_TIMEOUT);
+    private static final int HANDSHAKE_TIMEOUT = Config.getIntValue(Config.KEY_SSL_HANDSHAKE_TIMEOUT);
+    private static SslContextManager INSTANCE = new SslContextManager();
+    private volatile SSLContext context;
+    private String[] protocols;
+    private String[] cipherSuites;
+    // Statistic variables.
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    // Last sample of the handshake rate.
+    private long rateSampleTime = System.currentTimeMillis();
+    private long rateSampleHandshakes;
+    private double rate;
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private SslContextManager() {
+    }
+
+    /**
+     * Gets the unique SslContextManager instance.
+     *
+     * @return
+     */
+    public static SslContextManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * @return true if TLS is enabled
+     */
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Builds the SSLContext from the keystore. The server must not start in
+     * cleartext when TLS was asked for, so any problem is thrown.
+     *
+     * @throws IllegalStateException if the context can't be built
+     */
+    public void start() {
+        if (!ENABLED) {
+            return;
+        }
+
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+            char[] password = KEYSTORE_PASSWORD.toCharArray();
+            InputStream in = new FileInputStream(KEYSTORE);
+            try {
+                keyStore.load(in, password);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+
+            SSLContext newContext = SSLContext.getInstance("TLS");
+            newContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            SSLSessionContext sessionContext = newContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_CACHE_TIMEOUT);
+
+            SSLEngine engine = newContext.createSSLEngine();
+            protocols = filter(PROTOCOLS, engine.getSupportedProtocols(), engine.getEnabledProtocols());
+            cipherSuites = filter(CIPHER_SUITES, engine.getSupportedCipherSuites(), engine.getEnabledCipherSuites());
+            context = newContext;
+            logger.info("TLS enabled with protocols {} and {} cipher suites.", Arrays.toString(protocols),
+                    cipherSuites.length);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to read the keystore " + KEYSTORE, ioe);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException("Unable to build the TLS context", gse);
+        }
+    }
+
+    /**
+     * Creates the handler that terminates TLS for a new connection.
+     *
+     * @param timer the timer of the handshake timeout
+     * @return
+     */
+    public SslHandler newHandler(Timer timer) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        engine.setEnabledCipherSuites(cipherSuites);
+        SslHandler sslHandler = new CountingSslHandler(engine, timer);
+        // Client initiated renegotiations are a cheap way to burn our CPU.
+        sslHandler.setEnableRenegotiation(false);
+        return sslHandler;
+    }
+
+    /**
+     * Keeps the configured values that are supported, in the configured
+     * order.
+     *
+     * @param configured comma separated values, empty for the default ones
+     * @param supported
+     * @param defaults
+     * @return
+     */
+    private static String[] filter(String configured, String[] supported, String[] defaults) {
+        if (configured == null || configured.trim().isEmpty()) {
+            return defaults;
+        }
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> values = new ArrayList<String>();
+        for (String value : configured.split(",")) {
+            value = value.trim();
+            if (supportedList.contains(value)) {
+                values.add(value);
+            } else if (!value.isEmpty()) {
+                logger.warn("Ignoring the unsupported TLS protocol or cipher suite {}.", value);
+            }
+        }
+        if (values.isEmpty()) {
+            throw new IllegalStateException("None of the configured TLS values is supported: " + configured);
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @return the number of finished handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Gets the handshakes per second since the previous call, or the last
+     * value if the previous call was less than a second ago.
+     *
+     * @return
+     */
+    public synchronized double getHandshakeRate() {
+        long now = System.currentTimeMillis();
+        if (now - rateSampleTime >= 1000) {
+            long count = handshakes.get() + failedHandshakes.get();
+            rate = (count - rateSampleHandshakes) * 1000.0 / (now - rateSampleTime);
+            rateSampleTime = now;
+            rateSampleHandshakes = count;
+        }
+        return rate;
+    }
+
+    /**
+     * @return the number of handshakes that failed
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.get();
+    }
+
+    /**
+     * @return the fraction of the finished handshakes that resumed a cached
+     * session
+     */
+    public double getResumptionRatio() {
+        long total = handshakes.get();
+        return total == 0 ? 0 : (double) resumedHandshakes.get() / total;
+    }
+
+    /**
+     * SslHandler that starts the handshake as soon as the client connects,
+     * and counts it when it's over. A handshake resumed a session if the
+     * session was created before the connection.
+     */
+    private class CountingSslHandler extends SslHandler {
+
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * Constructor.
+         *
+         * @param engine
+         * @param timer
+         */
+        CountingSslHandler(SSLEngine engine, Timer timer) {
+            super(engine, getDefaultBufferPool(), false, ImmediateExecutor.INSTANCE, timer, HANDSHAKE_TIMEOUT);
+        }
+
+        /**
+         * Starts the handshake.
+         *
+         * @param ctx
+         * @param e
+         * @throws Exception
+         */
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            handshake().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        failedHandshakes.incrementAndGet();
+                        return;
+                    }
+                    handshakes.incrementAndGet();
+                    if (getEngine().getSession().getCreationTime() < created) {
+                        resumedHandshakes.incrementAndGet();
+                    }
+                }
+            });
+            super.channelConnected(ctx, e);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.staticcontent.StaticFileCache.CachedFile;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A read-only pack of static files, memory-mapped as a whole and indexed by
+ * request path. Every file of the pack is served as a slice of the mapped
+ * region, so serving it needs neither a filesystem lookup nor a copy. The
+ * mapping is released by the garbage collector once the pack is not used
+ * anymore and no response holds a slice of it.
+ *
+ * The pack is built by AssetPackBuilder with this layout: the magic bytes,
+ * the length of the index, the index and the data. The index starts with the
+ * number of entries, and every entry has the path, the mime type, the
+ * modification time, and the offset and length in the data of the file and
+ * of its gzip variant (with a negative length if there isn't one).
+ *
+ * @author fbudassi
+ */
+public final class AssetPack {
+
+    static final byte[] MAGIC = {'N', 'E', 'D', 'D', 'Y', 'P', 'K', '1'};
+    private final File file;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor.
+     *
+     * @param file
+     * @param entries
+     */
+    private AssetPack(File file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Maps a pack file in memory and reads its index. All the pages of the
+     * pack are loaded, so the first requests don't wait for the disk.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static AssetPack open(File file) throws IOException {
+        MappedByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Asset pack " + file + " is bigger than 2GB.");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+        mapped.load();
+
+        ChannelBuffer pack = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(mapped));
+        byte[] magic = new byte[MAGIC.length];
+        pack.getBytes(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException(file + " is not an asset pack.");
+        }
+
+        int indexLength = pack.getInt(MAGIC.length);
+        int dataOffset = MAGIC.length + 4 + indexLength;
+        ChannelBuffer data = pack.slice(dataOffset, pack.capacity() - dataOffset);
+        DataInputStream index = new DataInputStream(
+                new ChannelBufferInputStream(pack.slice(MAGIC.length + 4, indexLength)));
+
+        int count = index.readInt();
+        Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String path = index.readUTF();
+            String mimeType = index.readUTF();
+            long lastModified = index.readLong();
+            int offset = (int) index.readLong();
+            int length = (int) index.readLong();
+            int gzipOffset = (int) index.readLong();
+            int gzipLength = (int) index.readLong();
+
+            CachedFile content = new CachedFile(data.slice(offset, length), lastModified);
+            CachedFile gzipContent = null;
+            Map<String, ResolvedPath> precompressed = null;
+            if (gzipLength >= 0) {
+                gzipContent = new CachedFile(data.slice(gzipOffset, gzipLength), lastModified);
+                precompressed = Collections.singletonMap(EncodingUtil.GZIP, new ResolvedPath(null,
+                        file.getPath() + ":" + path, gzipLength, lastModified, mimeType, EncodingUtil.GZIP));
+            }
+            ResolvedPath resolvedPath = new ResolvedPath(null, file.getPath() + ":" + path, null,
+                    length, lastModified, mimeType, false, precompressed);
+            entries.put(path, new Entry(resolvedPath, content, gzipContent));
+        }
+        return new AssetPack(file, entries);
+    }
+
+    /**
+     * Gets the entry of a request path, or null if it's not in the pack.
+     *
+     * @param path the decoded request path, without the query string
+     * @return
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of paths in the pack
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A file of the pack, with its content and its gzip variant, if any.
+     */
+    public static class Entry {
+
+        private final ResolvedPath resolvedPath;
+        private final CachedFile content;
+        private final CachedFile gzipContent;
+
+        /**
+         * Constructor.
+         *
+         * @param resolvedPath
+         * @param content
+         * @param gzipContent
+         */
+        Entry(ResolvedPath resolvedPath, CachedFile content, CachedFile gzipContent) {
+            this.resolvedPath = resolvedPath;
+            this.content = content;
+            this.gzipContent = gzipContent;
+        }
+
+        /**
+         * @return the resolvedPath, whose precompressed sibling is the gzip
+         * variant
+         */
+        public ResolvedPath getResolvedPath() {
+            return resolvedPath;
+        }
+
+        /**
+         * Gets the content of the file or of its gzip variant.
+         *
+         * @param selectedPath the resolved path of the file or the one of its
+         * variant
+         * @return
+         */
+        public CachedFile getContent(ResolvedPath selectedPath) {
+            return selectedPath == resolvedPath ? content : gzipContent;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.config.DirectoryIndex;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds an asset pack out of a directory tree, usually the WWW root. Hidden
+ * files and the ones starting with a dot are left out, like the server does.
+ * The compressible files are also stored gzipped at the best compression
+ * level, when it's worth it. The index file of every directory is also
+ * available with the path of the directory (e.g. /docs/ for
+ * /docs/index.html).
+ *
+ * Usage: AssetPackBuilder [source directory] output-file
+ *
+ * @author fbudassi
+ */
+public final class AssetPackBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssetPackBuilder.class);
+    // Gzip variants bigger than this fraction of the file are not stored.
+    private static final double MIN_RATIO = 0.9;
+    private final File root;
+    private final List<PackedFile> files = new ArrayList<PackedFile>();
+    private final Map<String, PackedFile> filesByPath = new HashMap<String, PackedFile>();
+    private long dataLength;
+
+    /**
+     * Constructor.
+     *
+     * @param root
+     */
+    public AssetPackBuilder(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Builder starting point.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 2) {
+            System.err.println("Usage: AssetPackBuilder [source directory] output-file");
+            System.exit(1);
+        }
+        File root = new File(args.length == 2 ? args[0] : Config.getValue(Config.KEY_WWWROOT));
+        File output = new File(args[args.length - 1]);
+
+        AssetPackBuilder builder = new AssetPackBuilder(root);
+        builder.build(output);
+    }
+
+    /**
+     * Packs the whole directory tree in the output file.
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void build(File output) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException(root + " is not a directory.");
+        }
+        addDirectory(root, "/");
+
+        // Write the index first, then the content of every file.
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        indexOut.writeInt(files.size());
+        for (PackedFile packedFile : files) {
+            indexOut.writeUTF(packedFile.path);
+            indexOut.writeUTF(packedFile.mimeType);
+            indexOut.writeLong(packedFile.lastModified);
+            indexOut.writeLong(packedFile.offset);
+            indexOut.writeLong(packedFile.length);
+            indexOut.writeLong(packedFile.gzipOffset);
+            indexOut.writeLong(packedFile.gzip == null ? -1 : packedFile.gzip.length);
+        }
+        indexOut.close();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            out.write(AssetPack.MAGIC);
+            out.writeInt(index.size());
+            index.writeTo(out);
+            for (PackedFile packedFile : files) {
+                if (packedFile.alias) {
+                    continue;
+                }
+                copy(packedFile, out);
+                if (packedFile.gzip != null) {
+                    out.write(packedFile.gzip);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        logger.info("Packed {} paths from {} in {} ({} bytes of data).",
+                new Object[]{files.size(), root, output, dataLength});
+    }
+
+    /**
+     * Adds the files of a directory and its subdirectories.
+     *
+     * @param directory
+     * @param path the request path of the directory, ending with a slash
+     * @throws IOException
+     */
+    private void addDirectory(File directory, String path) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(children);
+
+        for (File child : children) {
+            if (child.isHidden() || child.getName().startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                addDirectory(child, path + child.getName() + "/");
+            } else if (child.isFile()) {
+                addFile(child, path + child.getName());
+            }
+        }
+
+        // Serve the index file of the directory with the directory path.
+        for (String fileName : DirectoryIndex.getFileNames()) {
+            PackedFile indexFile = filesByPath.get(path + fileName);
+            if (indexFile != null) {
+                files.add(new PackedFile(indexFile, path));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a file, with its gzip variant if it's worth it.
+     *
+     * @param file
+     * @param path
+     * @throws IOException
+     */
+    private void addFile(File file, String path) throws IOException {
+        PackedFile packedFile = new PackedFile(file, path, PathResolver.getMimeType(file));
+        packedFile.offset = dataLength;
+        dataLength += packedFile.length;
+
+        if (CompressedVariantCache.isCompressible(packedFile.mimeType, packedFile.length)) {
+            byte[] gzip = gzip(file);
+            if (gzip.length <= packedFile.length * MIN_RATIO) {
+                packedFile.gzip = gzip;
+                packedFile.gzipOffset = dataLength;
+                dataLength += gzip.length;
+            }
+        }
+        files.add(packedFile);
+        filesByPath.put(path, packedFile);
+    }
+
+    /**
+     * Compresses a whole file with gzip.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static byte[] gzip(File file) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Copies the content of a file to the pack, checking it didn't change
+     * since it was added.
+     *
+     * @param packedFile
+     * @param out
+     * @throws IOException
+     */
+    private static void copy(PackedFile packedFile, OutputStream out) throws IOException {
+        long copied = 0;
+        InputStream in = new FileInputStream(packedFile.file);
+        try {
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, count);
+                copied += count;
+            }
+        } finally {
+            in.close();
+        }
+        if (copied != packedFile.length) {
+            throw new IOException(packedFile.file + " changed while it was being packed.");
+        }
+    }
+
+    /**
+     * A file to be packed and its place in the data of the pack.
+     */
+    private static class PackedFile {
+
+        private final File file;
+        private final String path;
+        private final String mimeType;
+        private final long lastModified;
+        private final long length;
+        private long offset;
+        private byte[] gzip;
+        private long gzipOffset;
+        private boolean alias;
+
+        /**
+         * Constructor.
+         *
+         * @param file
+         * @param path
+         * @param mimeType
+         */
+        PackedFile(File file, String path, String mimeType) {
+            this.file = file;
+            this.path = path;
+            this.mimeType = mimeType;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        /**
+         * Constructor for another path with the same content.
+         *
+         * @param original
+         * @param path
+         */
+        PackedFile(PackedFile original, String path) {
+            this.file = original.file;
+            this.path = path;
+            this.mimeType = original.mimeType;
+            this.lastModified = original.lastModified;
+            this.length = original.length;
+            this.offset = original.offset;
+            this.gzip = original.gzip;
+            this.gzipOffset = original.gzipOffset;
+            this.alias = true;
+        }
+    }
+}
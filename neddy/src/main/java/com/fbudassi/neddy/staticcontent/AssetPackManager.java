@@ -0,0 +1,119 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the asset pack configured to be served before the WWW root, if any.
+ * The pack can be reloaded at any time: the new one replaces the old one
+ * atomically, and the requests being served keep using the old one.
+ *
+ * @author fbudassi
+ */
+public class AssetPackManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssetPackManager.class);
+    private static AssetPackManager INSTANCE = new AssetPackManager();
+    // Configuration variables.
+    private static final String PACK_FILE = Config.getValue(Config.KEY_PACK_FILE);
+    // Current pack, null if there isn't any.
+    private final AtomicReference<AssetPack> pack = new AtomicReference<AssetPack>();
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private AssetPackManager() {
+    }
+
+    /**
+     * Gets the unique AssetPackManager instance.
+     *
+     * @return
+     */
+    public static AssetPackManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Checks if an asset pack is configured.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return PACK_FILE != null && !PACK_FILE.trim().isEmpty();
+    }
+
+    /**
+     * Loads the configured asset pack, replacing the current one. If the pack
+     * can't be loaded, the current one is kept.
+     *
+     * @return true if the pack was loaded
+     */
+    public boolean load() {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        try {
+            AssetPack newPack = AssetPack.open(new File(PACK_FILE.trim()));
+            pack.set(newPack);
+            logger.info("Serving {} paths from asset pack {}.", newPack.size(), newPack.getFile());
+            return true;
+        } catch (IOException ioe) {
+            logger.error("Unable to load asset pack {}.", PACK_FILE, ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the entry of a requested Uri from the current pack. It returns
+     * null if there isn't a pack or the Uri is not in it.
+     *
+     * @param uri
+     * @return
+     */
+    public AssetPack.Entry get(String uri) {
+        AssetPack currentPack = pack.get();
+        if (currentPack == null) {
+            return null;
+        }
+
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            uri = uri.substring(0, query);
+        }
+        try {
+            return currentPack.get(URLDecoder.decode(uri, "UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            return null;
+        } catch (IllegalArgumentException iae) {
+            // Malformed escape sequence, the filesystem lookup will deal with it.
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of paths in the current pack
+     */
+    public int getEntries() {
+        AssetPack currentPack = pack.get();
+        return currentPack == null ? 0 : currentPack.size();
+    }
+}
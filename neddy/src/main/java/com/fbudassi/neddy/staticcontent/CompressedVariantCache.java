@@ -0,0 +1,383 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.Shutdownable;
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.staticcontent.StaticFileCache.CachedFile;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded in-memory cache of static files compressed on the fly with
+ * gzip. Files are never compressed in the I/O threads: the first request for
+ * a file schedules its compression in a small background pool and is answered
+ * uncompressed, and the following ones get the compressed variant once it's
+ * ready. Variants are keyed by the version (modification time and length) of
+ * the file they were made from, so a stale one is never served.
+ *
+ * @author fbudassi
+ */
+public class CompressedVariantCache implements FileChangeListener, Shutdownable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressedVariantCache.class);
+    // Configuration variables.
+    private static final boolean ENABLED = Config.getBooleanValue(Config.KEY_COMPRESSION_ENABLED);
+    private static final long MIN_FILE_SIZE = Long.parseLong(Config.getValue(Config.KEY_COMPRESSION_MINFILESIZE));
+    private static final long MAX_FILE_SIZE = Long.parseLong(Config.getValue(Config.KEY_COMPRESSION_MAXFILESIZE));
+    private static final long MAX_SIZE = Long.parseLong(Config.getValue(Config.KEY_COMPRESSION_MAXSIZE));
+    private static final int LEVEL = Config.getIntValue(Config.KEY_COMPRESSION_LEVEL);
+    private static final int THREADS = Config.getIntValue(Config.KEY_COMPRESSION_THREADS);
+    private static final String[] MIME_TYPES = Config.getValue(Config.KEY_COMPRESSION_MIMETYPES).split(",");
+    // Maximum number of files waiting to be compressed.
+    private static final int MAX_PENDING = 1024;
+    // Variants smaller than this fraction of the file are not worth it.
+    private static final double MIN_RATIO = 0.9;
+    // Created after the configuration, which the constructor depends on.
+    private static CompressedVariantCache INSTANCE = new CompressedVariantCache();
+    // Compressed variants in access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, CompressedVariant> cache;
+    private long currentSize;
+    // Files being compressed right now or waiting for it.
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ThreadPoolExecutor executor;
+    // Statistic variables.
+    private final AtomicLong compressions = new AtomicLong();
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private CompressedVariantCache() {
+        cache = new LinkedHashMap<String, CompressedVariant>(256, 0.75f, true);
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Compression Thread " + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the unique CompressedVariantCache instance.
+     *
+     * @return
+     */
+    public static CompressedVariantCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Checks if a file of the given type and length is worth compressing on
+     * the fly.
+     *
+     * @param mimeType
+     * @param length
+     * @return
+     */
+    static boolean isCompressible(String mimeType, long length) {
+        if (!ENABLED || length < MIN_FILE_SIZE || length > MAX_FILE_SIZE || length > MAX_SIZE) {
+            return false;
+        }
+        for (String compressibleType : MIME_TYPES) {
+            if (mimeType.startsWith(compressibleType.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the compressed variant of a resolved file if the client accepts it.
+     * If it's not ready, its compression is scheduled and null is returned,
+     * so the file must be sent uncompressed this time.
+     *
+     * @param resolvedPath
+     * @param acceptEncoding the Accept-Encoding header of the request
+     * @return
+     */
+    public CompressedVariant get(ResolvedPath resolvedPath, String acceptEncoding) {
+        if (!resolvedPath.isCompressible() || !EncodingUtil.isAccepted(acceptEncoding, EncodingUtil.GZIP)) {
+            return null;
+        }
+
+        String path = resolvedPath.getCanonicalPath();
+        CompressedVariant variant;
+        synchronized (cache) {
+            variant = cache.get(path);
+        }
+
+        // Check the version the variant was made from against the resolved one.
+        if (variant != null && variant.getSourceLastModified() == resolvedPath.getLastModified()
+                && variant.getSourceLength() == resolvedPath.getLength()) {
+            return variant.getContent() == null ? null : variant;
+        }
+
+        schedule(resolvedPath);
+        return null;
+    }
+
+    /**
+     * Schedules the compression of a file, unless it's already scheduled or
+     * there are too many files waiting.
+     *
+     * @param resolvedPath
+     */
+    private void schedule(final ResolvedPath resolvedPath) {
+        final String path = resolvedPath.getCanonicalPath();
+        if (!pending.add(path)) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        put(path, compress(resolvedPath));
+                    } catch (IOException ioe) {
+                        logger.debug("Unable to compress {}.", path, ioe);
+                    } finally {
+                        pending.remove(path);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            pending.remove(path);
+        }
+    }
+
+    /**
+     * Compresses a file with gzip in a direct buffer. If the file doesn't
+     * compress well, the variant is kept without content, so the file is not
+     * compressed again until it changes.
+     *
+     * @param resolvedPath
+     * @return
+     * @throws IOException
+     */
+    private CompressedVariant compress(ResolvedPath resolvedPath) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (resolvedPath.getLength() / 2));
+        long read = 0;
+        InputStream in = new FileInputStream(resolvedPath.getFile());
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(compressed, 8192) {
+                {
+                    def.setLevel(LEVEL);
+                }
+            };
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, count);
+                read += count;
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+        compressions.incrementAndGet();
+
+        if (read != resolvedPath.getLength() || resolvedPath.getFile().lastModified() != resolvedPath.getLastModified()) {
+            throw new IOException("The file changed while it was being compressed.");
+        }
+        if (compressed.size() > resolvedPath.getLength() * MIN_RATIO) {
+            return new CompressedVariant(null, null, resolvedPath.getLastModified(), resolvedPath.getLength());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(compressed.size());
+        buffer.put(compressed.toByteArray());
+        buffer.flip();
+        CachedFile content = new CachedFile(ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(buffer)),
+                resolvedPath.getLastModified());
+        return new CompressedVariant(resolvedPath.compressedWith(EncodingUtil.GZIP, content.getLength()), content,
+                resolvedPath.getLastModified(), resolvedPath.getLength());
+    }
+
+    /**
+     * Adds a variant to the cache, evicting the least recently used ones until
+     * the cache fits in its maximum size.
+     *
+     * @param path
+     * @param variant
+     */
+    private void put(String path, CompressedVariant variant) {
+        synchronized (cache) {
+            CompressedVariant previous = cache.put(path, variant);
+            if (previous != null) {
+                currentSize -= previous.getSize();
+            }
+            currentSize += variant.getSize();
+
+            Iterator<Map.Entry<String, CompressedVariant>> it = cache.entrySet().iterator();
+            while (currentSize > MAX_SIZE && it.hasNext()) {
+                Map.Entry<String, CompressedVariant> eldest = it.next();
+                if (eldest.getValue() == variant) {
+                    continue;
+                }
+                it.remove();
+                currentSize -= eldest.getValue().getSize();
+            }
+        }
+    }
+
+    /**
+     * Drops the variants of the files under the changed path.
+     *
+     * @param path
+     */
+    @Override
+    public void fileChanged(String path) {
+        synchronized (cache) {
+            Iterator<Map.Entry<String, CompressedVariant>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, CompressedVariant> entry = it.next();
+                if (ResolvedPath.isSameOrChild(entry.getKey(), path)) {
+                    it.remove();
+                    currentSize -= entry.getValue().getSize();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the variants.
+     */
+    @Override
+    public void allFilesChanged() {
+        synchronized (cache) {
+            cache.clear();
+            currentSize = 0;
+        }
+    }
+
+    /**
+     * Stops the compression threads.
+     */
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of files compressed so far
+     */
+    public long getCompressions() {
+        return compressions.get();
+    }
+
+    /**
+     * @return the number of compressed bytes currently cached
+     */
+    public long getSize() {
+        synchronized (cache) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * @return the number of compressed variants currently cached
+     */
+    public int getEntries() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * A static file compressed in memory together with the version of the
+     * file it was made from.
+     */
+    public static class CompressedVariant {
+
+        private final ResolvedPath resolvedPath;
+        private final CachedFile content;
+        private final long sourceLastModified;
+        private final long sourceLength;
+
+        /**
+         * Constructor.
+         *
+         * @param resolvedPath the description of the compressed file, null if
+         * it's not worth it
+         * @param content the compressed file, null if it's not worth it
+         * @param sourceLastModified
+         * @param sourceLength
+         */
+        CompressedVariant(ResolvedPath resolvedPath, CachedFile content, long sourceLastModified, long sourceLength) {
+            this.resolvedPath = resolvedPath;
+            this.content = content;
+            this.sourceLastModified = sourceLastModified;
+            this.sourceLength = sourceLength;
+        }
+
+        /**
+         * @return the resolvedPath
+         */
+        public ResolvedPath getResolvedPath() {
+            return resolvedPath;
+        }
+
+        /**
+         * @return the content
+         */
+        public CachedFile getContent() {
+            return content;
+        }
+
+        /**
+         * @return the sourceLastModified
+         */
+        public long getSourceLastModified() {
+            return sourceLastModified;
+        }
+
+        /**
+         * @return the sourceLength
+         */
+        public long getSourceLength() {
+            return sourceLength;
+        }
+
+        /**
+         * @return the number of bytes held in memory
+         */
+        long getSize() {
+            return content == null ? 0 : content.getLength();
+        }
+    }
+}
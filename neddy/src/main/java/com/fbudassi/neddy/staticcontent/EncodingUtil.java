@@ -0,0 +1,75 @@
+package com.fbudassi.neddy.staticcontent;
+
+/**
+ * Utility class to negotiate the content coding of a static file with the
+ * Accept-Encoding header of a request.
+ *
+ * @author fbudassi
+ */
+public final class EncodingUtil {
+
+    public static final String GZIP = "gzip";
+    public static final String BROTLI = "br";
+    private static final String ANY = "*";
+
+    /**
+     * Private constructor, this is a utility class.
+     */
+    private EncodingUtil() {
+    }
+
+    /**
+     * Checks if an Accept-Encoding header accepts the given content coding,
+     * i.e. it's listed (or "*" is) with a quality value greater than zero.
+     *
+     * @param acceptEncoding
+     * @param encoding
+     * @return
+     */
+    public static boolean isAccepted(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        float anyQuality = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            float quality = 1;
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                name = coding.substring(0, semicolon);
+                quality = parseQuality(coding.substring(semicolon + 1));
+            }
+
+            name = name.trim();
+            if (name.equalsIgnoreCase(encoding)) {
+                return quality > 0;
+            }
+            if (ANY.equals(name)) {
+                anyQuality = quality;
+            }
+        }
+        return anyQuality > 0;
+    }
+
+    /**
+     * Parses the parameters of a coding, looking for its quality value. An
+     * invalid one counts as zero.
+     *
+     * @param parameters
+     * @return
+     */
+    private static float parseQuality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2).trim());
+                } catch (NumberFormatException nfe) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,23 @@
+package com.fbudassi.neddy.staticcontent;
+
+/**
+ * An object implementing this interface is notified about the changes in the
+ * files under the WWW root, so it can drop whatever it knows about them.
+ *
+ * @author fbudassi
+ */
+public interface FileChangeListener {
+
+    /**
+     * A file or directory was created, modified or deleted.
+     *
+     * @param path the absolute path of the changed file or directory
+     */
+    public void fileChanged(String path);
+
+    /**
+     * Some changes were lost (or the watch service stopped working), so
+     * anything may have changed.
+     */
+    public void allFilesChanged();
+}
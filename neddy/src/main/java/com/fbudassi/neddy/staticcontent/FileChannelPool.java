@@ -0,0 +1,454 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.Shutdownable;
+import com.fbudassi.neddy.config.Config;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of open read-only FileChannels of the static files that are too big to
+ * be cached, keyed by canonical path. Every file region written to a client
+ * holds a reference to the pooled channel it transfers from, and a channel is
+ * only closed when it has been dropped from the pool (because it was idle for
+ * too long or its file changed) and the last region using it was released.
+ * This keeps the zero-copy transfer of big files without opening and closing
+ * them on every request.
+ *
+ * @author fbudassi
+ */
+public class FileChannelPool implements FileChangeListener, Shutdownable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileChannelPool.class);
+    private static FileChannelPool INSTANCE = new FileChannelPool();
+    // Configuration variables.
+    private static final int MAX_OPEN = Config.getIntValue(Config.KEY_FILECHANNELS_MAXOPEN);
+    private static final long IDLE_TIMEOUT = Long.parseLong(Config.getValue(Config.KEY_FILECHANNELS_IDLETIMEOUT));
+    // Pooled channels.
+    private final ConcurrentMap<String, PooledChannel> channels;
+    // Statistic variables.
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private FileChannelPool() {
+        channels = new ConcurrentHashMap<String, PooledChannel>();
+    }
+
+    /**
+     * Gets the unique FileChannelPool instance.
+     *
+     * @return
+     */
+    public static FileChannelPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Starts closing the channels that stay idle for too long.
+     *
+     * @param timer
+     */
+    public void start(Timer timer) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                closeIdleChannels();
+                if (!timeout.isCancelled()) {
+                    timeout.getTimer().newTimeout(this, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets an open channel of a resolved file. The caller gets a reference to
+     * it that must be released when it's not needed anymore.
+     *
+     * @param resolvedPath
+     * @return
+     * @throws IOException
+     */
+    public PooledChannel acquire(ResolvedPath resolvedPath) throws IOException {
+        String path = resolvedPath.getCanonicalPath();
+        PooledChannel pooledChannel = channels.get(path);
+        if (pooledChannel != null) {
+            if (pooledChannel.isVersion(resolvedPath) && pooledChannel.retain()) {
+                reused.incrementAndGet();
+                return pooledChannel;
+            }
+
+            // The pooled channel belongs to another version of the file.
+            if (channels.remove(path, pooledChannel)) {
+                pooledChannel.release();
+            }
+        }
+
+        // Open a new channel, the pool keeps a reference to it and the caller another one.
+        FileChannel channel = new RandomAccessFile(resolvedPath.getFile(), "r").getChannel();
+        opened.incrementAndGet();
+        pooledChannel = new PooledChannel(channel, channel.size(), resolvedPath.getLastModified());
+        pooledChannel.retain();
+
+        // A channel that doesn't match the resolved version or doesn't fit is used only once.
+        if (pooledChannel.getSize() != resolvedPath.getLength() || channels.size() >= MAX_OPEN
+                || channels.putIfAbsent(path, pooledChannel) != null) {
+            pooledChannel.release();
+        }
+        return pooledChannel;
+    }
+
+    /**
+     * Drops the channels that haven't been used for a while.
+     */
+    private void closeIdleChannels() {
+        long idleSince = System.currentTimeMillis() - IDLE_TIMEOUT;
+        Iterator<PooledChannel> it = channels.values().iterator();
+        while (it.hasNext()) {
+            PooledChannel pooledChannel = it.next();
+            if (pooledChannel.getLastUsed() < idleSince) {
+                it.remove();
+                pooledChannel.release();
+            }
+        }
+    }
+
+    /**
+     * Drops the channels of the files under the changed path.
+     *
+     * @param path
+     */
+    @Override
+    public void fileChanged(String path) {
+        Iterator<Map.Entry<String, PooledChannel>> it = channels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PooledChannel> entry = it.next();
+            if (ResolvedPath.isSameOrChild(entry.getKey(), path)) {
+                it.remove();
+                entry.getValue().release();
+            }
+        }
+    }
+
+    /**
+     * Drops all the channels.
+     */
+    @Override
+    public void allFilesChanged() {
+        Iterator<PooledChannel> it = channels.values().iterator();
+        while (it.hasNext()) {
+            PooledChannel pooledChannel = it.next();
+            it.remove();
+            pooledChannel.release();
+        }
+    }
+
+    /**
+     * Closes all the channels that are not being used.
+     */
+    @Override
+    public void shutdown() {
+        allFilesChanged();
+    }
+
+    /**
+     * @return the number of channels currently pooled
+     */
+    public int getOpenChannels() {
+        return channels.size();
+    }
+
+    /**
+     * @return the number of channels opened so far
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return the number of times a pooled channel was reused
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * A reference counted open channel of a file, together with the version
+     * of the file it was opened at.
+     */
+    public static class PooledChannel {
+
+        private final FileChannel channel;
+        private final long size;
+        private final long lastModified;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile long lastUsed;
+
+        /**
+         * Constructor.
+         *
+         * @param channel
+         * @param size
+         * @param lastModified
+         */
+        PooledChannel(FileChannel channel, long size, long lastModified) {
+            this.channel = channel;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks if the channel was opened at the resolved version of the
+         * file.
+         *
+         * @param resolvedPath
+         * @return
+         */
+        boolean isVersion(ResolvedPath resolvedPath) {
+            return lastModified == resolvedPath.getLastModified() && size == resolvedPath.getLength();
+        }
+
+        /**
+         * Gets one more reference to the channel. It fails if the channel is
+         * already closed.
+         *
+         * @return
+         */
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Releases one reference to the channel, closing it when it was the
+         * last one.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    logger.debug("Unable to close a pooled file channel.", ioe);
+                }
+            }
+        }
+
+        /**
+         * Reads a part of the file in a buffer. It returns null if the file
+         * is shorter than expected.
+         *
+         * @param position
+         * @param count
+         * @return
+         * @throws IOException
+         */
+        public ChannelBuffer read(long position, int count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            return ChannelBuffers.wrappedBuffer(buffer);
+        }
+
+        /**
+         * Creates a region of the file to be written to a client. The region
+         * holds its own reference to the channel, released when it has been
+         * transferred or its write has failed.
+         *
+         * @param position
+         * @param count
+         * @return
+         */
+        public PooledFileRegion newRegion(long position, long count) {
+            retain();
+            return new PooledFileRegion(this, position, count);
+        }
+
+        /**
+         * Creates a chunked input of a part of the file, for the connections
+         * that can't use zero-copy regions because they encrypt the content.
+         * Like a region, it holds its own reference to the channel, released
+         * when it's closed.
+         *
+         * @param position
+         * @param count
+         * @param chunkSize
+         * @return
+         */
+        public PooledChunkedInput newChunkedInput(long position, long count, int chunkSize) {
+            retain();
+            return new PooledChunkedInput(this, position, count, chunkSize);
+        }
+
+        /**
+         * @return the size of the file when it was opened
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the lastUsed
+         */
+        long getLastUsed() {
+            return lastUsed;
+        }
+    }
+
+    /**
+     * A file region that releases its reference to the pooled channel instead
+     * of closing it. It must also be added as a listener of its write future,
+     * since Netty doesn't release the regions whose write never started (e.g.
+     * the connection was closed before).
+     */
+    public static class PooledFileRegion extends DefaultFileRegion implements ChannelFutureListener {
+
+        private final PooledChannel pooledChannel;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         *
+         * @param pooledChannel
+         * @param position
+         * @param count
+         */
+        PooledFileRegion(PooledChannel pooledChannel, long position, long count) {
+            super(pooledChannel.channel, position, count, true);
+            this.pooledChannel = pooledChannel;
+        }
+
+        /**
+         * Releases the reference to the pooled channel, only once.
+         */
+        @Override
+        public void releaseExternalResources() {
+            if (released.compareAndSet(false, true)) {
+                pooledChannel.release();
+            }
+        }
+
+        /**
+         * The write of the region has finished, successfully or not.
+         *
+         * @param future
+         */
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            releaseExternalResources();
+        }
+    }
+
+    /**
+     * A chunked input of a part of a pooled file, read in heap buffers. It
+     * releases its reference to the pooled channel when it's closed, which
+     * ChunkedWriteHandler does when the input ends or the write fails.
+     */
+    public static class PooledChunkedInput implements ChunkedInput {
+
+        private final PooledChannel pooledChannel;
+        private final long end;
+        private final int chunkSize;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private long position;
+
+        /**
+         * Constructor.
+         *
+         * @param pooledChannel
+         * @param position
+         * @param count
+         * @param chunkSize
+         */
+        PooledChunkedInput(PooledChannel pooledChannel, long position, long count, int chunkSize) {
+            this.pooledChannel = pooledChannel;
+            this.position = position;
+            this.end = position + count;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNextChunk() {
+            return position < end;
+        }
+
+        /**
+         * Reads the next chunk of the file.
+         *
+         * @return
+         * @throws IOException if the file is shorter than expected
+         */
+        @Override
+        public Object nextChunk() throws IOException {
+            if (position >= end) {
+                return null;
+            }
+            int count = (int) Math.min(chunkSize, end - position);
+            ChannelBuffer chunk = pooledChannel.read(position, count);
+            if (chunk == null) {
+                throw new IOException("The file is shorter than expected.");
+            }
+            position += count;
+            return chunk;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return !hasNextChunk();
+        }
+
+        /**
+         * Releases the reference to the pooled channel, only once.
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                pooledChannel.release();
+            }
+        }
+    }
+}
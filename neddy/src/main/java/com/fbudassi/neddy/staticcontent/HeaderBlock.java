@@ -0,0 +1,95 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.util.DateUtil;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Utility class to build the already encoded headers of the full (200 OK)
+ * responses of static files. Everything but the Date and Connection headers
+ * depends only on the file, so it's encoded once per resolved file and only
+ * those two lines are added on every response. The result is written as a
+ * plain ChannelBuffer, which HttpResponseEncoder lets pass through.
+ *
+ * @author fbudassi
+ */
+public final class HeaderBlock {
+
+    private static final String SERVERNAME = Config.getValue(Config.KEY_SERVERNAME);
+    private static final String CRLF = "\r\n";
+    // Lines shared by all the responses.
+    private static final ChannelBuffer STATUS_LINE = encode("HTTP/1.1 200 OK" + CRLF);
+    private static final ChannelBuffer KEEP_ALIVE_END = encode(HttpHeaders.Names.CONNECTION + ": "
+            + HttpHeaders.Values.KEEP_ALIVE + CRLF + CRLF);
+    private static final ChannelBuffer CLOSE_END = encode(HttpHeaders.Names.CONNECTION + ": "
+            + HttpHeaders.Values.CLOSE + CRLF + CRLF);
+
+    /**
+     * Private constructor, this is a utility class.
+     */
+    private HeaderBlock() {
+    }
+
+    /**
+     * Gets the encoded initial line and headers of a full response of a file.
+     *
+     * @param resolvedPath
+     * @param keepAlive
+     * @return
+     */
+    public static ChannelBuffer getOkHeaders(ResolvedPath resolvedPath, boolean keepAlive) {
+        return ChannelBuffers.wrappedBuffer(true, STATUS_LINE, DateUtil.getCurrentHeader(), resolvedPath.getHeaderBlock(),
+                keepAlive ? KEEP_ALIVE_END : CLOSE_END);
+    }
+
+    /**
+     * Encodes the headers that depend only on the file.
+     *
+     * @param resolvedPath
+     * @return
+     */
+    static ChannelBuffer build(ResolvedPath resolvedPath) {
+        StringBuilder sb = new StringBuilder(256);
+        appendHeader(sb, HttpHeaders.Names.SERVER, SERVERNAME);
+        appendHeader(sb, HttpHeaders.Names.LAST_MODIFIED, resolvedPath.getLastModifiedHeader());
+        appendHeader(sb, HttpHeaders.Names.ETAG, resolvedPath.getETag());
+        appendHeader(sb, HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+        appendHeader(sb, HttpHeaders.Names.CONTENT_TYPE, resolvedPath.getMimeType());
+        if (resolvedPath.getContentEncoding() != null) {
+            appendHeader(sb, HttpHeaders.Names.CONTENT_ENCODING, resolvedPath.getContentEncoding());
+        }
+        if (resolvedPath.isNegotiated()) {
+            appendHeader(sb, HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        appendHeader(sb, HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(resolvedPath.getLength()));
+        return encode(sb.toString());
+    }
+
+    /**
+     * Appends a header line.
+     *
+     * @param sb
+     * @param name
+     * @param value
+     */
+    private static void appendHeader(StringBuilder sb, String name, String value) {
+        sb.append(name).append(": ").append(value).append(CRLF);
+    }
+
+    /**
+     * Encodes some header lines in a read-only direct buffer, so they can be
+     * shared by many responses and written without copies.
+     *
+     * @param lines
+     * @return
+     */
+    private static ChannelBuffer encode(String lines) {
+        byte[] bytes = lines.getBytes(CharsetUtil.US_ASCII);
+        ChannelBuffer buffer = ChannelBuffers.directBuffer(bytes.length);
+        buffer.writeBytes(bytes);
+        return ChannelBuffers.unmodifiableBuffer(buffer);
+    }
+}
@@ -0,0 +1,367 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.config.DirectoryIndex;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.activation.FileTypeMap;
+import javax.activation.MimetypesFileTypeMap;
+
+/**
+ * Resolves the requested Uris to files in the WWW root and caches the result,
+ * including the negative ones (not found or forbidden), by the decoded and
+ * normalized path, so all the spellings of a path share an entry. While the
+ * WWW root is being watched, a resolved path is served from memory without
+ * any filesystem call until a change in the files it depends on is
+ * notified. The paths of files that surely don't exist, according to the
+ * ServablePathFilter, are rejected without going to the filesystem and
+ * without being cached.
+ *
+ * @author fbudassi
+ */
+public class PathResolver implements FileChangeListener {
+
+    private static PathResolver INSTANCE = new PathResolver();
+    // Configuration variables.
+    private static final String WWWROOT = Config.getValue(Config.KEY_WWWROOT);
+    private static final int MAX_PATHS = Config.getIntValue(Config.KEY_CACHE_MAXPATHS);
+    // Collection with mime types.
+    private static final FileTypeMap MIME_TYPES = MimetypesFileTypeMap.getDefaultFileTypeMap();
+    // List of default names of index files.
+    private static final List<String> DEFAULT_NAMES = DirectoryIndex.getFileNames();
+    // Extensions of the precompressed siblings by content encoding, in order of preference.
+    private static final Map<String, String> PRECOMPRESSED_EXTENSIONS = new LinkedHashMap<String, String>();
+
+    /**
+     * Static constructor.
+     */
+    static {
+        PRECOMPRESSED_EXTENSIONS.put(EncodingUtil.BROTLI, ".br");
+        PRECOMPRESSED_EXTENSIONS.put(EncodingUtil.GZIP, ".gz");
+    }
+    // Resolved paths in access order, so the eldest entry is the least
+    // recently used. They are kept apart from the negative ones so a flood of
+    // bad requests can't push the good ones out.
+    private final Map<String, ResolvedPath> foundPaths;
+    private final Map<String, ResolvedPath> notFoundPaths;
+    // Incremented on every change, to discard resolutions that raced with it.
+    private final AtomicLong generation = new AtomicLong();
+    private volatile WwwRootWatcher watcher;
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private PathResolver() {
+        foundPaths = newPathMap();
+        notFoundPaths = newPathMap();
+    }
+
+    /**
+     * Creates a map of resolved paths that evicts the least recently used one
+     * when it's full. It must be accessed synchronized on it.
+     *
+     * @return
+     */
+    private static Map<String, ResolvedPath> newPathMap() {
+        return new PathMap();
+    }
+
+    /**
+     * Gets the unique PathResolver instance.
+     *
+     * @return
+     */
+    public static PathResolver getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Starts caching the resolved paths, relying on the watcher to know when
+     * they are not valid anymore.
+     *
+     * @param watcher
+     */
+    public void watch(WwwRootWatcher watcher) {
+        watcher.addListener(this);
+        this.watcher = watcher;
+    }
+
+    /**
+     * Resolves a requested Uri to the file to be served.
+     *
+     * @param uri
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    public ResolvedPath resolve(String uri) throws UnsupportedEncodingException {
+        // Check for path validity.
+        String sanitizedUri = sanitizeUri(uri);
+        if (sanitizedUri == null) {
+            return ResolvedPath.FORBIDDEN;
+        }
+
+        ResolvedPath resolvedPath;
+        synchronized (foundPaths) {
+            resolvedPath = foundPaths.get(sanitizedUri);
+        }
+        if (resolvedPath == null) {
+            synchronized (notFoundPaths) {
+                resolvedPath = notFoundPaths.get(sanitizedUri);
+            }
+        }
+        if (resolvedPath != null) {
+            return resolvedPath;
+        }
+        if (!ServablePathFilter.getInstance().mightExist(sanitizedUri)) {
+            return ResolvedPath.NOT_FOUND;
+        }
+
+        // Go to the filesystem and keep the result only if nothing changed meanwhile.
+        long currentGeneration = generation.get();
+        resolvedPath = resolveFromFileSystem(sanitizedUri);
+        if (resolvedPath == ResolvedPath.NOT_FOUND) {
+            ServablePathFilter.getInstance().falsePositive();
+        }
+        WwwRootWatcher currentWatcher = watcher;
+        if (currentWatcher != null && currentWatcher.isWatching()) {
+            Map<String, ResolvedPath> paths =
+                    resolvedPath.getStatus() == ResolvedPath.StatusEnum.FOUND ? foundPaths : notFoundPaths;
+            synchronized (paths) {
+                paths.put(sanitizedUri, resolvedPath);
+                if (generation.get() != currentGeneration) {
+                    paths.remove(sanitizedUri);
+                }
+            }
+        }
+        return resolvedPath;
+    }
+
+    /**
+     * Forgets a resolved Uri, e.g. because its file disappeared before it
+     * could be read.
+     *
+     * @param uri
+     * @throws UnsupportedEncodingException
+     */
+    public void invalidate(String uri) throws UnsupportedEncodingException {
+        generation.incrementAndGet();
+        String sanitizedUri = sanitizeUri(uri);
+        if (sanitizedUri == null) {
+            return;
+        }
+        synchronized (foundPaths) {
+            foundPaths.remove(sanitizedUri);
+        }
+        synchronized (notFoundPaths) {
+            notFoundPaths.remove(sanitizedUri);
+        }
+    }
+
+    /**
+     * Resolves a sanitized Uri looking at the filesystem. If it's a directory,
+     * it looks for an index file inside of it.
+     *
+     * @param sanitizedUri
+     * @return
+     */
+    private static ResolvedPath resolveFromFileSystem(String sanitizedUri) {
+        final String path = WWWROOT + sanitizedUri;
+
+        File file = new File(path);
+        if (file.isHidden() || !file.exists()) {
+            return ResolvedPath.NOT_FOUND;
+        }
+
+        File indexDirectory = null;
+        if (file.isDirectory()) {
+            // Look for a valid index file in the directory (e.g. index.html).
+            for (String fileName : DEFAULT_NAMES) {
+                File indexFile = new File(path + fileName);
+                if (indexFile.exists() && indexFile.isFile() && !indexFile.isHidden()) {
+                    indexDirectory = file;
+                    file = indexFile;
+                    break;
+                }
+            }
+        }
+
+        if (!file.isFile()) {
+            return ResolvedPath.FORBIDDEN;
+        }
+
+        try {
+            String mimeType = getMimeType(file);
+            long length = file.length();
+            long lastModified = file.lastModified();
+            return new ResolvedPath(file, file.getCanonicalPath(),
+                    indexDirectory == null ? null : indexDirectory.getCanonicalPath(),
+                    length, lastModified, mimeType, CompressedVariantCache.isCompressible(mimeType, length),
+                    resolvePrecompressed(file, lastModified, mimeType));
+        } catch (IOException ioe) {
+            return ResolvedPath.NOT_FOUND;
+        }
+    }
+
+    /**
+     * Looks for the precompressed siblings of a file. The ones older than the
+     * file are ignored, since they may hold a previous version of it.
+     *
+     * @param file
+     * @param lastModified
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    private static Map<String, ResolvedPath> resolvePrecompressed(File file, long lastModified, String mimeType)
+            throws IOException {
+        Map<String, ResolvedPath> precompressed = null;
+        for (Map.Entry<String, String> entry : PRECOMPRESSED_EXTENSIONS.entrySet()) {
+            File sibling = new File(file.getPath() + entry.getValue());
+            if (sibling.isFile() && !sibling.isHidden() && sibling.lastModified() >= lastModified) {
+                if (precompressed == null) {
+                    precompressed = new LinkedHashMap<String, ResolvedPath>();
+                }
+                precompressed.put(entry.getKey(), new ResolvedPath(sibling, sibling.getCanonicalPath(),
+                        sibling.length(), sibling.lastModified(), mimeType, entry.getKey()));
+            }
+        }
+        return precompressed;
+    }
+
+    /**
+     * Gets the mime type of a file, based on its name.
+     *
+     * @param file
+     * @return
+     */
+    static String getMimeType(File file) {
+        String mimeType = MIME_TYPES.getContentType(file);
+        if ("text/plain".equals(mimeType)) {
+            mimeType += "; charset=utf-8";
+        }
+        return mimeType;
+    }
+
+    /**
+     * Cleans the request Uri: it drops the query, decodes the path and
+     * collapses repeated separators. It returns null if the Uri is not
+     * allowed.
+     *
+     * @param uri
+     * @return
+     */
+    private static String sanitizeUri(String uri) throws UnsupportedEncodingException {
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            uri = uri.substring(0, query);
+        }
+
+        // Decode the path.
+        try {
+            uri = URLDecoder.decode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            uri = URLDecoder.decode(uri, "ISO-8859-1");
+        }
+
+        // Convert file separators.
+        uri = uri.replace('/', File.separatorChar);
+        String doubleSeparator = File.separator + File.separator;
+        while (uri.contains(doubleSeparator)) {
+            uri = uri.replace(doubleSeparator, File.separator);
+        }
+
+        // Security checks.
+        if (uri.contains(File.separator + ".")
+                || uri.contains("." + File.separator)
+                || uri.startsWith(".") || uri.endsWith(".")) {
+            return null;
+        }
+
+        return uri;
+    }
+
+    /**
+     * Drops every resolved Uri that depends on the changed path, and all the
+     * negative ones, since the path may have been just created.
+     *
+     * @param path
+     */
+    @Override
+    public void fileChanged(String path) {
+        generation.incrementAndGet();
+        synchronized (notFoundPaths) {
+            notFoundPaths.clear();
+        }
+        synchronized (foundPaths) {
+            Iterator<ResolvedPath> it = foundPaths.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().dependsOn(path)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the resolved Uris.
+     */
+    @Override
+    public void allFilesChanged() {
+        generation.incrementAndGet();
+        synchronized (foundPaths) {
+            foundPaths.clear();
+        }
+        synchronized (notFoundPaths) {
+            notFoundPaths.clear();
+        }
+    }
+
+    /**
+     * @return the number of Uris currently resolved in memory
+     */
+    public int getResolvedPaths() {
+        synchronized (foundPaths) {
+            synchronized (notFoundPaths) {
+                return foundPaths.size() + notFoundPaths.size();
+            }
+        }
+    }
+
+    /**
+     * Map of resolved paths, in access order, that holds up to MAX_PATHS.
+     */
+    private static class PathMap extends LinkedHashMap<String, ResolvedPath> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         */
+        PathMap() {
+            super(256, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedPath> eldest) {
+            return size() > MAX_PATHS;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.util.DateUtil;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Utility class to evaluate the conditional headers of a request (If-Match,
+ * If-Unmodified-Since, If-None-Match and If-Modified-Since) against a static
+ * file, in the order defined by RFC 7232.
+ *
+ * @author fbudassi
+ */
+public final class PreconditionUtil {
+
+    private static final String ANY = "*";
+    private static final String WEAK_PREFIX = "W/";
+
+    /**
+     * Private constructor, this is a utility class.
+     */
+    private PreconditionUtil() {
+    }
+
+    /**
+     * Evaluates the preconditions of a GET or HEAD request. It returns null if
+     * the file must be sent, or the status to answer with instead (Not
+     * Modified or Precondition Failed).
+     *
+     * @param request
+     * @param resolvedPath
+     * @return
+     */
+    public static HttpResponseStatus evaluate(HttpRequest request, ResolvedPath resolvedPath) {
+        String eTag = resolvedPath.getETag();
+        long lastModified = toSeconds(resolvedPath.getLastModified());
+
+        // If-Match takes precedence over If-Unmodified-Since.
+        String ifMatch = request.getHeader(HttpHeaders.Names.IF_MATCH);
+        if (ifMatch != null) {
+            if (!matches(ifMatch, eTag, false)) {
+                return HttpResponseStatus.PRECONDITION_FAILED;
+            }
+        } else {
+            long ifUnmodifiedSince = DateUtil.parseDate(request.getHeader(HttpHeaders.Names.IF_UNMODIFIED_SINCE));
+            if (ifUnmodifiedSince >= 0 && lastModified > toSeconds(ifUnmodifiedSince)) {
+                return HttpResponseStatus.PRECONDITION_FAILED;
+            }
+        }
+
+        // If-None-Match takes precedence over If-Modified-Since.
+        String ifNoneMatch = request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (matches(ifNoneMatch, eTag, true)) {
+                return HttpResponseStatus.NOT_MODIFIED;
+            }
+        } else {
+            long ifModifiedSince = DateUtil.parseDate(request.getHeader(HttpHeaders.Names.IF_MODIFIED_SINCE));
+            if (ifModifiedSince >= 0 && lastModified <= toSeconds(ifModifiedSince)) {
+                return HttpResponseStatus.NOT_MODIFIED;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks if a header with a list of entity tags (or "*") matches the
+     * entity tag of the file. The weak comparison ignores the weakness of the
+     * tags, while in the strong comparison weak tags never match.
+     *
+     * @param header
+     * @param eTag
+     * @param weakComparison
+     * @return
+     */
+    public static boolean matches(String header, String eTag, boolean weakComparison) {
+        if (ANY.equals(header.trim())) {
+            return true;
+        }
+
+        boolean eTagWeak = eTag.startsWith(WEAK_PREFIX);
+        if (eTagWeak && !weakComparison) {
+            return false;
+        }
+        String opaqueTag = eTagWeak ? eTag.substring(WEAK_PREFIX.length()) : eTag;
+
+        int i = 0;
+        int length = header.length();
+        while (i < length) {
+            // Skip separators.
+            char c = header.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+
+            // Read one entity tag.
+            boolean weak = header.startsWith(WEAK_PREFIX, i);
+            if (weak) {
+                i += WEAK_PREFIX.length();
+            }
+            int start = i;
+            if (i < length && header.charAt(i) == '"') {
+                int end = header.indexOf('"', i + 1);
+                i = end < 0 ? length : end + 1;
+            } else {
+                while (i < length && header.charAt(i) != ',') {
+                    i++;
+                }
+            }
+
+            if ((weakComparison || !weak) && header.regionMatches(start, opaqueTag, 0, opaqueTag.length())
+                    && i - start == opaqueTag.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HTTP dates have a resolution of one second.
+     *
+     * @param millis
+     * @return
+     */
+    private static long toSeconds(long millis) {
+        return millis / 1000;
+    }
+}
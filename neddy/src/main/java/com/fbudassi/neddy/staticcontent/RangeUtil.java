@@ -0,0 +1,249 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.util.DateUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Utility class to parse the Range header of a request for a static file,
+ * taking the If-Range header into account.
+ *
+ * @author fbudassi
+ */
+public final class RangeUtil {
+
+    private static final String BYTES_UNIT = "bytes=";
+    // Requests with more ranges than this are answered with the whole file.
+    private static final int MAX_RANGES = 16;
+    // Separator of the parts of multiple ranges responses.
+    private static final String BOUNDARY = "NEDDY_" + UUID.randomUUID().toString().replace("-", "");
+    private static final String CRLF = "\r\n";
+    /**
+     * Content type of a response with multiple ranges.
+     */
+    public static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=" + BOUNDARY;
+    // Used when the ranges are not requested in order.
+    private static final Comparator<ByteRange> START_COMPARATOR = new Comparator<ByteRange>() {
+        @Override
+        public int compare(ByteRange r1, ByteRange r2) {
+            return r1.getStart() < r2.getStart() ? -1 : (r1.getStart() == r2.getStart() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Private constructor, this is a utility class.
+     */
+    private RangeUtil() {
+    }
+
+    /**
+     * Gets the byte ranges of the file that were requested, sorted and with
+     * the overlapping ones merged. It returns null if the whole file must be
+     * sent (no Range header, an invalid one, or If-Range not satisfied), or an
+     * empty list if none of the ranges can be satisfied.
+     *
+     * @param request
+     * @param resolvedPath
+     * @return
+     */
+    public static List<ByteRange> getRanges(HttpRequest request, ResolvedPath resolvedPath) {
+        String range = request.getHeader(HttpHeaders.Names.RANGE);
+        if (range == null || !isIfRangeSatisfied(request, resolvedPath)) {
+            return null;
+        }
+        return parse(range, resolvedPath.getLength());
+    }
+
+    /**
+     * Checks the If-Range header, if any. It can hold an entity tag (compared
+     * in the strong way) or the exact modification date of the file.
+     *
+     * @param request
+     * @param resolvedPath
+     * @return
+     */
+    private static boolean isIfRangeSatisfied(HttpRequest request, ResolvedPath resolvedPath) {
+        String ifRange = request.getHeader(HttpHeaders.Names.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return PreconditionUtil.matches(ifRange, resolvedPath.getETag(), false);
+        }
+        long date = DateUtil.parseDate(ifRange);
+        return date >= 0 && date / 1000 == resolvedPath.getLastModified() / 1000;
+    }
+
+    /**
+     * Parses a byte ranges header value for a file of the given length.
+     *
+     * @param range
+     * @param length
+     * @return
+     */
+    static List<ByteRange> parse(String range, long length) {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        String[] specs = range.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+
+                long start;
+                long end;
+                if (dash == 0) {
+                    // Suffix range: the last n bytes.
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+
+                // Ranges starting after the end of the file can't be satisfied.
+                if (start < length) {
+                    ranges.add(new ByteRange(start, end));
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+
+        return merge(ranges);
+    }
+
+    /**
+     * Sorts the ranges and merges the ones that overlap or are adjacent.
+     *
+     * @param ranges
+     * @return
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        Collections.sort(ranges, START_COMPARATOR);
+        List<ByteRange> merged = new ArrayList<ByteRange>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.getStart() <= current.getEnd() + 1) {
+                current = new ByteRange(current.getStart(), Math.max(current.getEnd(), next.getEnd()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * Builds the headers that precede a part in a multiple ranges response.
+     *
+     * @param range
+     * @param mimeType
+     * @param totalLength
+     * @return
+     */
+    public static ChannelBuffer buildPartHeader(ByteRange range, String mimeType, long totalLength) {
+        return ChannelBuffers.copiedBuffer(CRLF + "--" + BOUNDARY + CRLF
+                + HttpHeaders.Names.CONTENT_TYPE + ": " + mimeType + CRLF
+                + HttpHeaders.Names.CONTENT_RANGE + ": " + range.toContentRange(totalLength) + CRLF
+                + CRLF, CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Builds the boundary that closes a multiple ranges response.
+     *
+     * @return
+     */
+    public static ChannelBuffer buildClosingBoundary() {
+        return ChannelBuffers.copiedBuffer(CRLF + "--" + BOUNDARY + "--" + CRLF, CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * A range of bytes of a file, both ends included.
+     */
+    public static class ByteRange {
+
+        private final long start;
+        private final long end;
+
+        /**
+         * Constructor.
+         *
+         * @param start
+         * @param end
+         */
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return the start
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the end
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the number of bytes in the range
+         */
+        public long getLength() {
+            return end - start + 1;
+        }
+
+        /**
+         * Gets the value of the Content-Range header for this range.
+         *
+         * @param totalLength
+         * @return
+         */
+        public String toContentRange(long totalLength) {
+            return "bytes " + start + "-" + end + "/" + totalLength;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import com.fbudassi.neddy.util.DateUtil;
+import java.io.File;
+import org.jboss.netty.buffer.ChannelBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable result of resolving a requested Uri against the WWW root. It holds
+ * the file that must be served together with the metadata needed to build the
+ * response, or the reason why there is nothing to serve. A found file also
+ * knows its precompressed siblings (e.g. app.js.gz next to app.js), which are
+ * resolved paths themselves with a content encoding.
+ *
+ * @author fbudassi
+ */
+public final class ResolvedPath {
+
+    /**
+     * Possible results of a path resolution.
+     */
+    public enum StatusEnum {
+
+        FOUND, NOT_FOUND, FORBIDDEN
+    }
+    private static final boolean WEAK_ETAGS = Config.getBooleanValue(Config.KEY_ETAG_WEAK);
+    // Shared results for the requests that can't be served.
+    static final ResolvedPath NOT_FOUND = new ResolvedPath(StatusEnum.NOT_FOUND);
+    static final ResolvedPath FORBIDDEN = new ResolvedPath(StatusEnum.FORBIDDEN);
+    private final StatusEnum status;
+    private final File file;
+    private final String canonicalPath;
+    private final String indexDirectory;
+    private final long length;
+    private final long lastModified;
+    private final String mimeType;
+    private final String eTag;
+    private final String lastModifiedHeader;
+    private final String contentEncoding;
+    private final boolean compressible;
+    private final Map<String, ResolvedPath> precompressed;
+    // Encoded headers of the full responses, built on the first one.
+    private volatile ChannelBuffer headerBlock;
+
+    /**
+     * Constructor for the requests that can't be served.
+     *
+     * @param status
+     */
+    private ResolvedPath(StatusEnum status) {
+        this.status = status;
+        this.file = null;
+        this.canonicalPath = null;
+        this.indexDirectory = null;
+        this.length = 0;
+        this.lastModified = 0;
+        this.mimeType = null;
+        this.eTag = null;
+        this.lastModifiedHeader = null;
+        this.contentEncoding = null;
+        this.compressible = false;
+        this.precompressed = Collections.emptyMap();
+    }
+
+    /**
+     * Constructor for a file found in the WWW root.
+     *
+     * @param file
+     * @param canonicalPath
+     * @param indexDirectory the directory requested if the file is its index
+     * file, null otherwise
+     * @param length
+     * @param lastModified
+     * @param mimeType
+     * @param compressible whether the file can be compressed on the fly
+     * @param precompressed the precompressed siblings by content encoding, in
+     * order of preference
+     */
+    ResolvedPath(File file, String canonicalPath, String indexDirectory, long length, long lastModified, String mimeType,
+            boolean compressible, Map<String, ResolvedPath> precompressed) {
+        this(file, canonicalPath, indexDirectory, length, lastModified, mimeType, null,
+                buildETag(lastModified, length, null), compressible, precompressed);
+    }
+
+    /**
+     * Constructor for a precompressed sibling of a file.
+     *
+     * @param file
+     * @param canonicalPath
+     * @param length
+     * @param lastModified
+     * @param mimeType the mime type of the uncompressed file
+     * @param contentEncoding
+     */
+    ResolvedPath(File file, String canonicalPath, long length, long lastModified, String mimeType, String contentEncoding) {
+        this(file, canonicalPath, null, length, lastModified, mimeType, contentEncoding,
+                buildETag(lastModified, length, contentEncoding), false, null);
+    }
+
+    /**
+     * Full constructor.
+     */
+    private ResolvedPath(File file, String canonicalPath, String indexDirectory, long length, long lastModified,
+            String mimeType, String contentEncoding, String eTag, boolean compressible,
+            Map<String, ResolvedPath> precompressed) {
+        this.status = StatusEnum.FOUND;
+        this.file = file;
+        this.canonicalPath = canonicalPath;
+        this.indexDirectory = indexDirectory;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.mimeType = mimeType;
+        this.contentEncoding = contentEncoding;
+        this.eTag = eTag;
+        this.lastModifiedHeader = DateUtil.formatDate(lastModified);
+        this.compressible = compressible;
+        this.precompressed = precompressed == null
+                ? Collections.<String, ResolvedPath>emptyMap() : Collections.unmodifiableMap(precompressed);
+    }
+
+    /**
+     * Builds the entity tag of a file version out of its modification time and
+     * length. Every content encoding of the same version gets its own tag.
+     *
+     * @param lastModified
+     * @param length
+     * @param contentEncoding
+     * @return
+     */
+    private static String buildETag(long lastModified, long length, String contentEncoding) {
+        String eTag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+                + (contentEncoding == null ? "" : "-" + contentEncoding) + "\"";
+        return WEAK_ETAGS ? "W/" + eTag : eTag;
+    }
+
+    /**
+     * Describes this file compressed in memory with the given content
+     * encoding. It keeps the version (and so the entity tag) of this file.
+     *
+     * @param contentEncoding
+     * @param compressedLength
+     * @return
+     */
+    ResolvedPath compressedWith(String contentEncoding, long compressedLength) {
+        return new ResolvedPath(file, canonicalPath, null, compressedLength, lastModified, mimeType, contentEncoding,
+                buildETag(lastModified, length, contentEncoding), false, null);
+    }
+
+    /**
+     * Gets the preferred precompressed sibling accepted by the client, or null
+     * if there isn't any.
+     *
+     * @param acceptEncoding the Accept-Encoding header of the request
+     * @return
+     */
+    public ResolvedPath getPrecompressed(String acceptEncoding) {
+        for (Map.Entry<String, ResolvedPath> entry : precompressed.entrySet()) {
+            if (EncodingUtil.isAccepted(acceptEncoding, entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if this path depends on the existence or content of the changed
+     * path.
+     *
+     * @param changedPath
+     * @return
+     */
+    boolean dependsOn(String changedPath) {
+        if (status != StatusEnum.FOUND) {
+            return true;
+        }
+        // The prefix check also covers the precompressed siblings (e.g. app.js.gz).
+        return isSameOrChild(canonicalPath, changedPath) || changedPath.startsWith(canonicalPath)
+                || (indexDirectory != null && isSameOrChild(changedPath, indexDirectory));
+    }
+
+    /**
+     * Checks if path is the same as parent or it's inside of it.
+     *
+     * @param path
+     * @param parent
+     * @return
+     */
+    static boolean isSameOrChild(String path, String parent) {
+        return path.startsWith(parent)
+                && (path.length() == parent.length() || path.charAt(parent.length()) == File.separatorChar);
+    }
+
+    /**
+     * @return the status
+     */
+    public StatusEnum getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the canonicalPath
+     */
+    public String getCanonicalPath() {
+        return canonicalPath;
+    }
+
+    /**
+     * @return the length
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the lastModified
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the mimeType
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return the eTag
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the modification time formatted for the Last-Modified header
+     */
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * Gets the encoded headers of a full response of this file that don't
+     * change from one response to another.
+     *
+     * @return
+     */
+    public ChannelBuffer getHeaderBlock() {
+        ChannelBuffer block = headerBlock;
+        if (block == null) {
+            block = HeaderBlock.build(this);
+            headerBlock = block;
+        }
+        return block;
+    }
+
+    /**
+     * @return the content encoding, null if the file is not compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return whether the file can be compressed on the fly
+     */
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    /**
+     * Checks if the response depends on the Accept-Encoding header of the
+     * request, so it must be sent with a Vary header.
+     *
+     * @return
+     */
+    public boolean isNegotiated() {
+        return contentEncoding != null || compressible || !precompressed.isEmpty();
+    }
+}
@@ -0,0 +1,366 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bloom filter over the paths of all the files and directories under the WWW
+ * root, so the requests for paths that surely don't exist (e.g. from
+ * scanners) are rejected without any filesystem call. It's built walking the
+ * whole tree and kept up to date with the changes notified by the watcher:
+ * created paths are added right away, and since paths can't be removed from a
+ * Bloom filter, it's rebuilt when too many of them were deleted or it gets too
+ * full. While the WWW root is not being watched, every path may exist.
+ *
+ * @author fbudassi
+ */
+public class ServablePathFilter implements FileChangeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServablePathFilter.class);
+    // Configuration variables.
+    private static final String WWWROOT = Config.getValue(Config.KEY_WWWROOT);
+    private static final boolean ENABLED = Config.getBooleanValue(Config.KEY_PATHFILTER_ENABLED);
+    private static final double FALSE_POSITIVE_RATE =
+            Double.parseDouble(Config.getValue(Config.KEY_PATHFILTER_FALSEPOSITIVERATE));
+    // Minimum number of paths the filter is sized for.
+    private static final int MIN_CAPACITY = 1024;
+    private static ServablePathFilter INSTANCE = new ServablePathFilter();
+    // The WWW root as it's used to build the requested paths, and its real path, used by the watcher.
+    private final String root = new File(WWWROOT).getPath();
+    private String realRoot;
+    private volatile WwwRootWatcher watcher;
+    private volatile BloomFilter filter;
+    // Paths deleted since the last rebuild, still in the filter.
+    private int deleted;
+    // Statistic variables.
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private volatile long rebuildTime;
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private ServablePathFilter() {
+    }
+
+    /**
+     * Gets the unique ServablePathFilter instance.
+     *
+     * @return
+     */
+    public static ServablePathFilter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Builds the filter and keeps it up to date with the changes notified by
+     * the watcher, which must be already started.
+     *
+     * @param watcher
+     */
+    public void watch(WwwRootWatcher watcher) {
+        if (!ENABLED) {
+            return;
+        }
+        watcher.addListener(this);
+        this.watcher = watcher;
+        rebuild();
+    }
+
+    /**
+     * Checks if a requested path may exist under the WWW root. It doesn't
+     * make any filesystem call.
+     *
+     * @param sanitizedUri the decoded and sanitized request path
+     * @return false if the path surely doesn't exist
+     */
+    public boolean mightExist(String sanitizedUri) {
+        BloomFilter currentFilter = filter;
+        WwwRootWatcher currentWatcher = watcher;
+        if (currentFilter == null || currentWatcher == null || !currentWatcher.isWatching()) {
+            return true;
+        }
+
+        // Normalize the path the same way the filesystem lookup does.
+        if (currentFilter.mightContain(new File(WWWROOT + sanitizedUri).getPath())) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records a path that passed the filter but didn't exist.
+     */
+    public void falsePositive() {
+        if (filter != null) {
+            falsePositives.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the changed path, and everything under it if it's a directory. A
+     * deleted path stays in the filter until the next rebuild.
+     *
+     * @param path
+     */
+    @Override
+    public synchronized void fileChanged(String path) {
+        BloomFilter currentFilter = filter;
+        if (currentFilter == null || realRoot == null || !path.startsWith(realRoot)) {
+            return;
+        }
+
+        Path changedPath = Paths.get(path);
+        if (Files.exists(changedPath)) {
+            try {
+                List<String> paths = walk(changedPath, root + path.substring(realRoot.length()));
+                if (currentFilter.getCount() + paths.size() > currentFilter.getCapacity()) {
+                    rebuild();
+                    return;
+                }
+                for (String addedPath : paths) {
+                    if (!currentFilter.mightContain(addedPath)) {
+                        currentFilter.add(addedPath);
+                    }
+                }
+            } catch (IOException ioe) {
+                logger.warn("Unable to add {} to the path filter, rebuilding it.", path, ioe);
+                rebuild();
+            }
+        } else if (++deleted > currentFilter.getCount() / 2 && deleted > MIN_CAPACITY / 2) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Rebuilds the whole filter, or drops it if the WWW root is not being
+     * watched anymore.
+     */
+    @Override
+    public synchronized void allFilesChanged() {
+        WwwRootWatcher currentWatcher = watcher;
+        if (currentWatcher != null && currentWatcher.isWatching()) {
+            rebuild();
+        } else {
+            filter = null;
+        }
+    }
+
+    /**
+     * Walks the whole WWW root and replaces the filter with a new one sized
+     * for the current number of paths. If the tree can't be walked, every
+     * path may exist until the next rebuild.
+     */
+    private synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        try {
+            realRoot = Paths.get(root).toRealPath().toString();
+            List<String> paths = walk(Paths.get(root), root);
+            BloomFilter newFilter = new BloomFilter(Math.max(paths.size() * 2, MIN_CAPACITY), FALSE_POSITIVE_RATE);
+            for (String path : paths) {
+                newFilter.add(path);
+            }
+            filter = newFilter;
+            deleted = 0;
+            rebuildTime = System.currentTimeMillis() - start;
+            logger.info("Path filter built with {} paths in {} ms.", paths.size(), rebuildTime);
+        } catch (IOException ioe) {
+            logger.warn("Unable to build the path filter of {}.", root, ioe);
+            filter = null;
+        }
+    }
+
+    /**
+     * Lists a path and everything under it, leaving the hidden files out,
+     * since they are never served.
+     *
+     * @param start the path to walk
+     * @param requestPath the start path as it's built from the requests
+     * @return
+     * @throws IOException
+     */
+    private static List<String> walk(final Path start, final String requestPath) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        final int startLength = start.toString().length();
+        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        if (!dir.equals(start) && Files.isHidden(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        paths.add(requestPath + dir.toString().substring(startLength));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (!Files.isHidden(file)) {
+                            paths.add(requestPath + file.toString().substring(startLength));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                        if (exc instanceof FileSystemLoopException) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        throw exc;
+                    }
+                });
+        return paths;
+    }
+
+    /**
+     * @return the number of requests rejected by the filter
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the fraction of the missing paths that passed the filter
+     */
+    public double getFalsePositiveRate() {
+        long passed = falsePositives.get();
+        long total = passed + rejected.get();
+        return total == 0 ? 0 : (double) passed / total;
+    }
+
+    /**
+     * @return the time in ms taken by the last rebuild
+     */
+    public long getRebuildTime() {
+        return rebuildTime;
+    }
+
+    /**
+     * A Bloom filter of strings, with a single writer and lock-free readers.
+     */
+    private static class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final long size;
+        private final int hashes;
+        private final int capacity;
+        private volatile int count;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity the number of elements it's sized for
+         * @param falsePositiveRate the expected rate when it's full
+         */
+        BloomFilter(int capacity, double falsePositiveRate) {
+            long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+            this.size = bits.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+            this.capacity = capacity;
+        }
+
+        /**
+         * Adds an element.
+         *
+         * @param element
+         */
+        void add(String element) {
+            long hash = hash(element);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = bits.get(index);
+                } while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask));
+            }
+            count++;
+        }
+
+        /**
+         * Checks if an element may have been added.
+         *
+         * @param element
+         * @return false if it was surely not added
+         */
+        boolean mightContain(String element) {
+            long hash = hash(element);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % size;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 64 bits FNV-1a hash of the characters, with a final mix so both
+         * halves can be used as independent hashes.
+         *
+         * @param element
+         * @return
+         */
+        private static long hash(String element) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < element.length(); i++) {
+                hash ^= element.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        /**
+         * @return the number of elements added
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of elements it's sized for
+         */
+        int getCapacity() {
+            return capacity;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.config.Config;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded in-memory cache of small static files. The content of every
+ * cached file is held in a direct ChannelBuffer that is never copied: every
+ * response gets its own read-only view of it. The least recently used files
+ * are evicted when the configured size is exceeded, and an entry is dropped as
+ * soon as a change in its file is notified or its version (modification time
+ * and length) doesn't match the resolved one. Concurrent misses of the same
+ * file version are coalesced: only one of them reads the file, and the rest
+ * are answered with its result.
+ *
+ * @author fbudassi
+ */
+public class StaticFileCache implements FileChangeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticFileCache.class);
+    private static StaticFileCache INSTANCE = new StaticFileCache();
+    // Configuration variables.
+    private static final boolean ENABLED = Config.getBooleanValue(Config.KEY_CACHE_ENABLED);
+    private static final long MAX_SIZE = Long.parseLong(Config.getValue(Config.KEY_CACHE_MAXSIZE));
+    private static final long MAX_FILE_SIZE = Long.parseLong(Config.getValue(Config.KEY_CACHE_MAXFILESIZE));
+    // Cached files in access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, CachedFile> cache;
+    private long currentSize;
+    // Loads in progress.
+    private final ConcurrentMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+    // Statistic variables.
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Private constructor due to Singleton pattern usage.
+     */
+    private StaticFileCache() {
+        cache = new LinkedHashMap<String, CachedFile>(256, 0.75f, true);
+    }
+
+    /**
+     * Gets the unique StaticFileCache instance.
+     *
+     * @return
+     */
+    public static StaticFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Avoid object cloning by overriding the clone() method.
+     *
+     * @return
+     * @throws CloneNotSupportedException
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException();
+    }
+
+    /**
+     * Gets the cached content of a resolved file. It returns null if the file
+     * is not cached or the cached version is not the resolved one.
+     *
+     * @param resolvedPath
+     * @return
+     */
+    public CachedFile get(ResolvedPath resolvedPath) {
+        if (!ENABLED) {
+            return null;
+        }
+
+        String path = resolvedPath.getCanonicalPath();
+        CachedFile cachedFile;
+        synchronized (cache) {
+            cachedFile = cache.get(path);
+        }
+        if (cachedFile == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        // Check the cached version against the resolved one.
+        if (cachedFile.getLastModified() != resolvedPath.getLastModified()
+                || cachedFile.getLength() != resolvedPath.getLength()) {
+            remove(path, cachedFile);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return cachedFile;
+    }
+
+    /**
+     * Loads a resolved file in the cache and notifies the listener when it's
+     * done. If the same version of the file is already being loaded, the
+     * listener just waits for that load to finish. The listener gets null if
+     * the cache is disabled or the file is too big to be cached.
+     *
+     * @param resolvedPath
+     * @param listener
+     */
+    public void load(ResolvedPath resolvedPath, LoadListener listener) {
+        long length = resolvedPath.getLength();
+        if (!ENABLED || length > MAX_FILE_SIZE || length > MAX_SIZE) {
+            listener.loaded(null, null);
+            return;
+        }
+
+        String path = resolvedPath.getCanonicalPath();
+        Load load = new Load(resolvedPath);
+        load.addListener(listener);
+        Load inFlight = loads.putIfAbsent(path, load);
+        if (inFlight != null && inFlight.isVersion(resolvedPath)) {
+            coalesced.incrementAndGet();
+            inFlight.addListener(listener);
+            return;
+        }
+
+        // Read the file, unless another version of it is being loaded, then just don't coalesce.
+        CachedFile cachedFile = null;
+        IOException cause = null;
+        try {
+            cachedFile = load(resolvedPath);
+        } catch (IOException ioe) {
+            cause = ioe;
+        }
+        if (inFlight == null) {
+            loads.remove(path, load);
+        }
+        load.complete(cachedFile, cause);
+    }
+
+    /**
+     * Reads a resolved file and adds it to the cache.
+     *
+     * @param resolvedPath
+     * @return
+     * @throws IOException
+     */
+    private CachedFile load(ResolvedPath resolvedPath) throws IOException {
+        ChannelBuffer content = readFile(resolvedPath.getFile(), (int) resolvedPath.getLength());
+        if (content.readableBytes() != resolvedPath.getLength()) {
+            // The file changed while it was being read.
+            return null;
+        }
+
+        CachedFile cachedFile = new CachedFile(content, resolvedPath.getLastModified());
+        put(resolvedPath.getCanonicalPath(), cachedFile);
+        return cachedFile;
+    }
+
+    /**
+     * Reads the whole file in a direct buffer.
+     *
+     * @param file
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private static ChannelBuffer readFile(File file, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } finally {
+            fis.close();
+        }
+        buffer.flip();
+        return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(buffer));
+    }
+
+    /**
+     * Adds a file to the cache, evicting the least recently used ones until
+     * the cache fits in its maximum size.
+     *
+     * @param path
+     * @param cachedFile
+     */
+    private void put(String path, CachedFile cachedFile) {
+        synchronized (cache) {
+            CachedFile previous = cache.put(path, cachedFile);
+            if (previous != null) {
+                currentSize -= previous.getLength();
+            }
+            currentSize += cachedFile.getLength();
+
+            Iterator<Map.Entry<String, CachedFile>> it = cache.entrySet().iterator();
+            while (currentSize > MAX_SIZE && it.hasNext()) {
+                Map.Entry<String, CachedFile> eldest = it.next();
+                if (eldest.getValue() == cachedFile) {
+                    continue;
+                }
+                it.remove();
+                currentSize -= eldest.getValue().getLength();
+                evictions.incrementAndGet();
+                logger.debug("Evicted {} from the static file cache.", eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the cache only if it wasn't replaced in the
+     * meantime.
+     *
+     * @param path
+     * @param cachedFile
+     */
+    private void remove(String path, CachedFile cachedFile) {
+        synchronized (cache) {
+            if (cache.get(path) == cachedFile) {
+                cache.remove(path);
+                currentSize -= cachedFile.getLength();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached files under the changed path.
+     *
+     * @param path
+     */
+    @Override
+    public void fileChanged(String path) {
+        synchronized (cache) {
+            Iterator<Map.Entry<String, CachedFile>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, CachedFile> entry = it.next();
+                if (ResolvedPath.isSameOrChild(entry.getKey(), path)) {
+                    it.remove();
+                    currentSize -= entry.getValue().getLength();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached files.
+     */
+    @Override
+    public void allFilesChanged() {
+        synchronized (cache) {
+            cache.clear();
+            currentSize = 0;
+        }
+    }
+
+    /**
+     * @return the number of requests served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests not found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of files evicted to make room for other ones
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of misses that waited for the load of another one
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of bytes currently cached
+     */
+    public long getSize() {
+        synchronized (cache) {
+            return currentSize;
+        }
+    }
+
+    /**
+     * @return the number of files currently cached
+     */
+    public int getEntries() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Listener notified when a file has been loaded in the cache.
+     */
+    public interface LoadListener {
+
+        /**
+         * The load has finished. It's called in the thread that read the
+         * file.
+         *
+         * @param cachedFile the loaded file, null if it can't be cached
+         * @param cause the error reading the file, if any
+         */
+        void loaded(CachedFile cachedFile, IOException cause);
+    }
+
+    /**
+     * A load in progress of a version of a file, with the listeners waiting
+     * for it.
+     */
+    private static class Load {
+
+        private final long lastModified;
+        private final long length;
+        private final List<LoadListener> listeners = new ArrayList<LoadListener>(1);
+        private boolean done;
+        private CachedFile cachedFile;
+        private IOException cause;
+
+        /**
+         * Constructor.
+         *
+         * @param resolvedPath
+         */
+        Load(ResolvedPath resolvedPath) {
+            this.lastModified = resolvedPath.getLastModified();
+            this.length = resolvedPath.getLength();
+        }
+
+        /**
+         * Checks if this is a load of the resolved version of the file.
+         *
+         * @param resolvedPath
+         * @return
+         */
+        boolean isVersion(ResolvedPath resolvedPath) {
+            return lastModified == resolvedPath.getLastModified() && length == resolvedPath.getLength();
+        }
+
+        /**
+         * Adds a listener, notifying it right away if the load has already
+         * finished.
+         *
+         * @param listener
+         */
+        void addListener(LoadListener listener) {
+            synchronized (this) {
+                if (!done) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.loaded(cachedFile, cause);
+        }
+
+        /**
+         * Finishes the load and notifies all the listeners.
+         *
+         * @param cachedFile
+         * @param cause
+         */
+        void complete(CachedFile cachedFile, IOException cause) {
+            synchronized (this) {
+                this.cachedFile = cachedFile;
+                this.cause = cause;
+                this.done = true;
+            }
+            for (LoadListener listener : listeners) {
+                try {
+                    listener.loaded(cachedFile, cause);
+                } catch (RuntimeException re) {
+                    logger.warn("Unexpected exception from a static file load listener.", re);
+                }
+            }
+        }
+    }
+
+    /**
+     * A static file held in memory together with the version it was read at.
+     */
+    public static class CachedFile {
+
+        private final ChannelBuffer content;
+        private final long lastModified;
+        private final long length;
+
+        /**
+         * Constructor.
+         *
+         * @param content
+         * @param lastModified
+         */
+        CachedFile(ChannelBuffer content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = content.readableBytes();
+        }
+
+        /**
+         * Gets a new read-only view of the content. It shares the cached
+         * memory, so nothing is copied.
+         *
+         * @return the content
+         */
+        public ChannelBuffer getContent() {
+            return content.duplicate();
+        }
+
+        /**
+         * @return the lastModified
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the length
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.Shutdownable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the WWW root directory and all its subdirectories through a
+ * WatchService, and notifies the registered listeners about every change, so
+ * the static content caches are kept coherent with the filesystem.
+ *
+ * @author fbudassi
+ */
+public class WwwRootWatcher extends Thread implements Shutdownable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WwwRootWatcher.class);
+    private Path root;
+    private final List<FileChangeListener> listeners = new CopyOnWriteArrayList<FileChangeListener>();
+    private WatchService watchService;
+    private volatile boolean watching;
+
+    /**
+     * Constructor.
+     *
+     * @param wwwroot
+     */
+    public WwwRootWatcher(String wwwroot) {
+        super("WWW Root Watcher Thread");
+        this.setDaemon(true);
+        this.root = Paths.get(wwwroot);
+    }
+
+    /**
+     * Adds a listener to be notified about the changes.
+     *
+     * @param listener
+     */
+    public void addListener(FileChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers the whole directory tree and starts watching it. If the tree
+     * can't be watched, the listeners are told so and the thread is not
+     * started.
+     */
+    @Override
+    public void start() {
+        try {
+            root = root.toRealPath();
+            watchService = FileSystems.getDefault().newWatchService();
+            register(root);
+            watching = true;
+            super.start();
+            logger.info("Watching {} for changes.", root);
+        } catch (IOException ioe) {
+            logger.warn("Unable to watch {}, static content won't be cached.", root, ioe);
+            stopWatching();
+        }
+    }
+
+    /**
+     * Processes the filesystem events until the watch service is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.debug("Filesystem events lost under {}.", dir);
+                        notifyAllFilesChanged();
+                        continue;
+                    }
+
+                    Path path = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        register(path);
+                    }
+                    notifyFileChanged(path);
+                }
+
+                if (!key.reset()) {
+                    // The directory is not accessible anymore.
+                    notifyFileChanged(dir);
+                }
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            // The watcher was shut down.
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            logger.error("Error watching {}, static content won't be cached anymore.", root, ioe);
+        }
+        stopWatching();
+    }
+
+    /**
+     * Registers a directory and all its subdirectories in the watch service.
+     *
+     * @param start
+     * @throws IOException
+     */
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Marks the watcher as stopped and tells the listeners that they can't
+     * rely on it anymore.
+     */
+    private void stopWatching() {
+        watching = false;
+        notifyAllFilesChanged();
+    }
+
+    /**
+     * Notifies a single change to all the listeners.
+     *
+     * @param path
+     */
+    private void notifyFileChanged(Path path) {
+        logger.debug("{} changed.", path);
+        for (FileChangeListener listener : listeners) {
+            listener.fileChanged(path.toString());
+        }
+    }
+
+    /**
+     * Tells all the listeners that anything may have changed.
+     */
+    private void notifyAllFilesChanged() {
+        for (FileChangeListener listener : listeners) {
+            listener.allFilesChanged();
+        }
+    }
+
+    /**
+     * Checks if the WWW root is being watched, so the changes on it are
+     * notified.
+     *
+     * @return
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * Stops watching the WWW root.
+     */
+    @Override
+    public void shutdown() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException ioe) {
+            logger.error("Error closing the watch service.", ioe);
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package com.fbudassi.neddy.util;
 
 import java.util.Locale;
-import org.joda.time.DateTime;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 /**
  * Utility class to format dates in the HTTP/1.1 way. Dates are formated
- * according to RFC 1123.
+ * according to RFC 1123. Once started, a timer task formats the current date
+ * at the beginning of every second, so the responses just read it.
  *
  * @author fbudassi
  */
@@ -20,17 +28,68 @@ public class DateUtil {
         RFC_1123_FORMAT = DateTimeFormat.forPattern(RFC_1123_PATTERN).withLocale(Locale.US).withZoneUTC();
     }
 
+    // Current date, formatted only once per second.
+    private static volatile CurrentDate currentDate = new CurrentDate(0);
+
+    /**
+     * Starts formatting the current date at the beginning of every second.
+     *
+     * @param timer
+     */
+    public static void start(Timer timer) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                long now = System.currentTimeMillis();
+                getCurrentDate(now / 1000);
+                if (!timeout.isCancelled()) {
+                    timeout.getTimer().newTimeout(this, 1000 - now % 1000, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
     /**
-     * Returns the current date/time formatted according to RFC 1123.
+     * Returns the current date/time formatted according to RFC 1123. HTTP
+     * dates have a resolution of one second, so it's formatted only once per
+     * second.
      *
      * @return
      */
     public static String getCurrent() {
-        return RFC_1123_FORMAT.print(DateTime.now());
+        return getCurrentDate(System.currentTimeMillis() / 1000).formatted;
+    }
+
+    /**
+     * Returns the Date header line of the current date, already encoded in a
+     * read-only buffer that can be shared by many responses.
+     *
+     * @return
+     */
+    public static ChannelBuffer getCurrentHeader() {
+        return getCurrentDate(System.currentTimeMillis() / 1000).header;
     }
 
     /**
-     * Returns the date passed formatted according to RFC 1123.
+     * Gets the formatted date of a second. It's normally the one published by
+     * the timer, unless it's late or not started.
+     *
+     * @param second
+     * @return
+     */
+    private static CurrentDate getCurrentDate(long second) {
+        CurrentDate date = currentDate;
+        if (date.second != second) {
+            date = new CurrentDate(second);
+            currentDate = date;
+        }
+        return date;
+    }
+
+    /**
+     * Returns the date passed formatted according to RFC 1123. The
+     * modification times of files are formatted once, when they're resolved,
+     * and kept with them.
      *
      * @param date
      * @return
@@ -38,4 +97,46 @@ public class DateUtil {
     public static String formatDate(long date) {
         return RFC_1123_FORMAT.print(date);
     }
+
+    /**
+     * Parses a date formatted according to RFC 1123. It returns -1 if the date
+     * is null or it's not valid.
+     *
+     * @param date
+     * @return
+     */
+    public static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return RFC_1123_FORMAT.parseMillis(date.trim());
+        } catch (IllegalArgumentException iae) {
+            return -1;
+        }
+    }
+
+    /**
+     * A second, its formatted date and its encoded Date header line.
+     */
+    private static class CurrentDate {
+
+        private final long second;
+        private final String formatted;
+        private final ChannelBuffer header;
+
+        /**
+         * Constructor.
+         *
+         * @param second
+         */
+        CurrentDate(long second) {
+            this.second = second;
+            this.formatted = RFC_1123_FORMAT.print(second * 1000);
+            byte[] bytes = (HttpHeaders.Names.DATE + ": " + formatted + "\r\n").getBytes(CharsetUtil.US_ASCII);
+            ChannelBuffer buffer = ChannelBuffers.directBuffer(bytes.length);
+            buffer.writeBytes(bytes);
+            this.header = ChannelBuffers.unmodifiableBuffer(buffer);
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package com.fbudassi.neddy.action;
+
+import com.fbudassi.neddy.action.bean.ListenerActionBean;
+import com.fbudassi.neddy.action.bean.ListenerActionBean.ListenerActionEnum;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the decoding of the listener actions of the binary protocol.
+ *
+ * @author fbudassi
+ */
+public class BinaryProtocolTest {
+
+    @Test
+    public void decodesAnAction() {
+        ListenerActionBean action = BinaryProtocol.decodeAction(action(ListenerActionEnum.SUBSCRIBE.getCode(), 1, "alpha", 0));
+
+        assertEquals(ListenerActionEnum.SUBSCRIBE.name(), action.getAction());
+        assertTrue(action.isCoalesce());
+        assertEquals("alpha", action.getCategory());
+        assertNull(action.getSinceSeq());
+    }
+
+    @Test
+    public void decodesTheSequenceToReplayAfter() {
+        ChannelBuffer buffer = action(ListenerActionEnum.SUBSCRIBE.getCode(), 0, "alpha", 8);
+        buffer.writeLong(42);
+        ListenerActionBean action = BinaryProtocol.decodeAction(buffer);
+
+        assertFalse(action.isCoalesce());
+        assertEquals(Long.valueOf(42), action.getSinceSeq());
+    }
+
+    @Test
+    public void decodesAnActionWithoutCategory() {
+        ListenerActionBean action = BinaryProtocol.decodeAction(action(ListenerActionEnum.GET_CATEGORIES.getCode(), 0, "", 0));
+
+        assertEquals(ListenerActionEnum.GET_CATEGORIES.name(), action.getAction());
+        assertNull(action.getCategory());
+    }
+
+    @Test
+    public void unknownCodesAreInvalidActions() {
+        ListenerActionBean action = BinaryProtocol.decodeAction(action(99, 0, "alpha", 0));
+
+        assertEquals("99", action.getAction());
+    }
+
+    @Test
+    public void rejectsATruncatedHeader() {
+        assertNull(BinaryProtocol.decodeAction(ChannelBuffers.EMPTY_BUFFER));
+        assertNull(BinaryProtocol.decodeAction(ChannelBuffers.wrappedBuffer(new byte[]{1, 0, 0})));
+    }
+
+    @Test
+    public void rejectsATruncatedCategory() {
+        ChannelBuffer buffer = action(ListenerActionEnum.SUBSCRIBE.getCode(), 0, "alpha", 0);
+
+        assertNull(BinaryProtocol.decodeAction(buffer.slice(0, buffer.readableBytes() - 1)));
+    }
+
+    @Test
+    public void rejectsABadSequenceLength() {
+        for (int seqLength : new int[]{1, 4, 7, 9, 16}) {
+            ChannelBuffer buffer = action(ListenerActionEnum.SUBSCRIBE.getCode(), 0, "alpha", seqLength);
+            buffer.writeZero(seqLength);
+            assertNull(BinaryProtocol.decodeAction(buffer));
+        }
+    }
+
+    /**
+     * Encodes the header and the category of an action.
+     *
+     * @param code
+     * @param flags
+     * @param category
+     * @param room the bytes to leave room for after the category
+     * @return
+     */
+    private static ChannelBuffer action(int code, int flags, String category, int room) {
+        byte[] name = category.getBytes(CharsetUtil.UTF_8);
+        ChannelBuffer buffer = ChannelBuffers.buffer(4 + name.length + room);
+        buffer.writeByte(code);
+        buffer.writeByte(flags);
+        buffer.writeShort(name.length);
+        buffer.writeBytes(name);
+        return buffer;
+    }
+}
@@ -0,0 +1,141 @@
+package com.fbudassi.neddy.category;
+
+import com.fbudassi.neddy.action.bean.ResponseBean;
+import com.fbudassi.neddy.handler.SharedTextWebSocketFrame;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH comparison of a broadcast to a DefaultChannelGroup and to a
+ * BroadcastGroup of the same channels. The channels have no handlers and
+ * their sink completes every write at once, so what's measured is the cost
+ * of the groups themselves. The garbage generated per broadcast is the
+ * gc.alloc.rate.norm of the gc profiler. Run it with:
+ *
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-classpath %classpath org.openjdk.jmh.Main BroadcastGroupBenchmark -prof gc"
+ *
+ * @author fbudassi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastGroupBenchmark {
+
+    @Param({"1000", "100000"})
+    private int listeners;
+    private SharedTextWebSocketFrame frame;
+    private ChannelGroup channelGroup;
+    private BroadcastGroup broadcastGroup;
+
+    /**
+     * Adds the same channels to a group of each kind.
+     */
+    @Setup
+    public void setUp() {
+        frame = new SharedTextWebSocketFrame(ResponseBean.getNewMessageResponse("hello", "news"));
+        channelGroup = new DefaultChannelGroup("benchmark");
+        broadcastGroup = new BroadcastGroup("benchmark");
+        CompletingSink sink = new CompletingSink();
+        for (int i = 0; i < listeners; i++) {
+            BenchmarkChannel channel = new BenchmarkChannel(sink);
+            channelGroup.add(channel);
+            broadcastGroup.add(channel);
+        }
+    }
+
+    /**
+     * @return
+     */
+    @Benchmark
+    public Object defaultChannelGroup() {
+        return channelGroup.write(frame);
+    }
+
+    /**
+     * The channels have no worker, so the broadcast runs in this thread.
+     */
+    @Benchmark
+    public void broadcastGroup() {
+        broadcastGroup.write(frame);
+    }
+
+    /**
+     * Sink that completes the writes as soon as they get to it.
+     */
+    private static class CompletingSink extends AbstractChannelSink {
+
+        @Override
+        public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) {
+            if (e instanceof MessageEvent) {
+                e.getFuture().setSuccess();
+            }
+        }
+    }
+
+    /**
+     * Connected channel without a socket and without handlers.
+     */
+    private static class BenchmarkChannel extends AbstractChannel {
+
+        private final ChannelConfig config = new DefaultChannelConfig();
+
+        /**
+         * Constructor.
+         *
+         * @param sink
+         */
+        BenchmarkChannel(CompletingSink sink) {
+            super(null, null, Channels.pipeline(), sink);
+        }
+
+        @Override
+        public ChannelConfig getConfig() {
+            return config;
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.fbudassi.neddy.handler;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the inflating of permessage-deflate frames, in front of the WebSocket
+ * frame decoder as in the listeners pipeline. The close frames it writes end
+ * up in the embedder too.
+ *
+ * @author fbudassi
+ */
+public class DeflateFrameDecoderTest {
+
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+    private static final int OPCODE_CONT = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_PING = 0x9;
+    private static final byte[] MASK = {0x12, 0x34, 0x56, 0x78};
+    private final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+            new DeflateFrameDecoder(), new WebSocket13FrameDecoder(true, false, 65536));
+
+    @Test
+    public void inflatesACompressedMessage() {
+        String message = repeat("{\"category\":\"alpha\"}", 20);
+        embedder.offer(frame(FIN | RSV1 | OPCODE_TEXT, compress(message)));
+
+        TextWebSocketFrame frame = (TextWebSocketFrame) embedder.poll();
+        assertTrue(frame.isFinalFragment());
+        assertEquals(0, frame.getRsv());
+        assertEquals(message, frame.getText());
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void inflatesFragmentsAroundAPing() {
+        String message = repeat("fragmented message ", 50);
+        byte[] compressed = compress(message);
+        int half = compressed.length / 2;
+        ChannelBuffer input = ChannelBuffers.wrappedBuffer(
+                frame(RSV1 | OPCODE_TEXT, Arrays.copyOfRange(compressed, 0, half)),
+                frame(FIN | OPCODE_PING, "ping".getBytes(CharsetUtil.UTF_8)),
+                frame(FIN | OPCODE_CONT, Arrays.copyOfRange(compressed, half, compressed.length)));
+        // Split in the middle of the ping, as the socket could read it.
+        int split = input.readableBytes() / 2;
+        embedder.offer(input.slice(0, split));
+        embedder.offer(input.slice(split, input.readableBytes() - split));
+
+        TextWebSocketFrame first = (TextWebSocketFrame) embedder.poll();
+        assertFalse(first.isFinalFragment());
+        PingWebSocketFrame ping = (PingWebSocketFrame) embedder.poll();
+        assertEquals("ping", ping.getBinaryData().toString(CharsetUtil.UTF_8));
+        ContinuationWebSocketFrame last = (ContinuationWebSocketFrame) embedder.poll();
+        assertTrue(last.isFinalFragment());
+        assertEquals(message, first.getBinaryData().toString(CharsetUtil.UTF_8)
+                + last.getBinaryData().toString(CharsetUtil.UTF_8));
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void letsPlainFramesThrough() {
+        embedder.offer(frame(FIN | OPCODE_TEXT, "plain".getBytes(CharsetUtil.UTF_8)));
+
+        assertEquals("plain", ((TextWebSocketFrame) embedder.poll()).getText());
+    }
+
+    @Test
+    public void closesOnAnOversizedMessage() {
+        embedder.offer(frame(FIN | RSV1 | OPCODE_TEXT, compress(repeat("0", 70000))));
+
+        assertClosed(1009);
+    }
+
+    @Test
+    public void closesOnCorruptData() {
+        // A final block of the reserved type.
+        embedder.offer(frame(FIN | RSV1 | OPCODE_TEXT, new byte[]{(byte) 0xFF, 0x00, 0x00, 0x00}));
+        assertClosed(1007);
+
+        // Anything sent afterwards is ignored.
+        embedder.offer(frame(FIN | OPCODE_TEXT, "late".getBytes(CharsetUtil.UTF_8)));
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * Checks that the only output is a close frame with the given code.
+     *
+     * @param statusCode
+     */
+    private void assertClosed(int statusCode) {
+        CloseWebSocketFrame close = (CloseWebSocketFrame) embedder.poll();
+        assertEquals(statusCode, close.getStatusCode());
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * Compresses a message as a client does, without the tail of the sync
+     * flush.
+     *
+     * @param message
+     * @return
+     */
+    private static byte[] compress(String message) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(message.getBytes(CharsetUtil.UTF_8));
+        byte[] output = new byte[message.length() + 64];
+        int length = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        return Arrays.copyOf(output, length - 4);
+    }
+
+    /**
+     * Encodes a masked frame, as sent by a client.
+     *
+     * @param firstByte
+     * @param payload
+     * @return
+     */
+    private static ChannelBuffer frame(int firstByte, byte[] payload) {
+        ChannelBuffer frame = ChannelBuffers.buffer(14 + payload.length);
+        frame.writeByte(firstByte);
+        if (payload.length <= 125) {
+            frame.writeByte(0x80 | payload.length);
+        } else {
+            frame.writeByte(0x80 | 126);
+            frame.writeShort(payload.length);
+        }
+        frame.writeBytes(MASK);
+        for (int i = 0; i < payload.length; i++) {
+            frame.writeByte(payload[i] ^ MASK[i & 3]);
+        }
+        return frame;
+    }
+
+    /**
+     * @param text
+     * @param times
+     * @return
+     */
+    private static String repeat(String text, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+}
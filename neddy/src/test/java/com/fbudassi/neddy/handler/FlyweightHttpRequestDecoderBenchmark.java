@@ -0,0 +1,104 @@
+package com.fbudassi.neddy.handler;
+
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH comparison of the stock HttpRequestDecoder and the
+ * FlyweightHttpRequestDecoder, decoding a browser request of a static file
+ * and reading the headers StaticContentExpert looks at. Run it with:
+ *
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-classpath %classpath org.openjdk.jmh.Main FlyweightHttpRequestDecoderBenchmark -prof gc"
+ *
+ * @author fbudassi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlyweightHttpRequestDecoderBenchmark {
+
+    private static final String REQUEST = "GET /js/app.js?v=3 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/24.0 Safari/537.36\r\n"
+            + "Accept: */*\r\n"
+            + "Referer: http://www.example.com/index.html\r\n"
+            + "Accept-Encoding: gzip,deflate,sdch\r\n"
+            + "Accept-Language: en-US,en;q=0.8\r\n"
+            + "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.3\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+            + "If-None-Match: \"13c5a8f2e10-4b2\"\r\n"
+            + "If-Modified-Since: Sat, 02 Feb 2013 10:20:30 GMT\r\n"
+            + "\r\n";
+    private ChannelBuffer request;
+    private DecoderEmbedder<HttpRequest> stockDecoder;
+    private DecoderEmbedder<HttpRequest> flyweightDecoder;
+
+    /**
+     * Creates one decoder of each kind, reused for all the requests like on a
+     * keep-alive connection.
+     */
+    @Setup
+    public void setUp() {
+        request = ChannelBuffers.copiedBuffer(REQUEST, CharsetUtil.US_ASCII);
+        stockDecoder = new DecoderEmbedder<HttpRequest>(new HttpRequestDecoder());
+        flyweightDecoder = new DecoderEmbedder<HttpRequest>(new FlyweightHttpRequestDecoder(0));
+    }
+
+    /**
+     * @param blackhole
+     */
+    @Benchmark
+    public void stockDecoder(Blackhole blackhole) {
+        decode(stockDecoder, blackhole);
+    }
+
+    /**
+     * @param blackhole
+     */
+    @Benchmark
+    public void flyweightDecoder(Blackhole blackhole) {
+        decode(flyweightDecoder, blackhole);
+    }
+
+    /**
+     * Decodes a request and reads what a static file request needs.
+     *
+     * @param decoder
+     * @param blackhole
+     */
+    private void decode(DecoderEmbedder<HttpRequest> decoder, Blackhole blackhole) {
+        decoder.offer(request.duplicate());
+        HttpRequest decoded = decoder.poll();
+        blackhole.consume(decoded.getMethod());
+        blackhole.consume(decoded.getUri());
+        blackhole.consume(HttpHeaders.isKeepAlive(decoded));
+        blackhole.consume(decoded.getHeader(HttpHeaders.Names.UPGRADE));
+        blackhole.consume(decoded.getHeader(HttpHeaders.Names.IF_MATCH));
+        blackhole.consume(decoded.getHeader(HttpHeaders.Names.IF_NONE_MATCH));
+        blackhole.consume(decoded.getHeader(HttpHeaders.Names.RANGE));
+        blackhole.consume(decoded.getHeader(HttpHeaders.Names.ACCEPT_ENCODING));
+        blackhole.consume(HttpHeaders.isKeepAlive(decoded));
+    }
+}
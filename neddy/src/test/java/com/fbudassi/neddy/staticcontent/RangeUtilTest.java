@@ -0,0 +1,76 @@
+package com.fbudassi.neddy.staticcontent;
+
+import com.fbudassi.neddy.staticcontent.RangeUtil.ByteRange;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the parsing of the Range header values.
+ *
+ * @author fbudassi
+ */
+public class RangeUtilTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        List<ByteRange> ranges = RangeUtil.parse("bytes=500-599, 0-99, 50-149, 150-199", LENGTH);
+        assertEquals(2, ranges.size());
+        assertRange(0, 199, ranges.get(0));
+        assertRange(500, 599, ranges.get(1));
+    }
+
+    @Test
+    public void clampsOpenAndLongRangesToTheEnd() {
+        assertRange(900, 999, RangeUtil.parse("bytes=900-", LENGTH).get(0));
+        assertRange(900, 999, RangeUtil.parse("bytes=900-5000", LENGTH).get(0));
+    }
+
+    @Test
+    public void suffixRangesTakeTheLastBytes() {
+        assertRange(900, 999, RangeUtil.parse("bytes=-100", LENGTH).get(0));
+        assertRange(0, 999, RangeUtil.parse("bytes=-5000", LENGTH).get(0));
+    }
+
+    @Test
+    public void unsatisfiableRangesAreLeftOut() {
+        assertTrue(RangeUtil.parse("bytes=1000-1099", LENGTH).isEmpty());
+        assertTrue(RangeUtil.parse("bytes=-0", LENGTH).isEmpty());
+        List<ByteRange> ranges = RangeUtil.parse("bytes=2000-, 10-19", LENGTH);
+        assertEquals(1, ranges.size());
+        assertRange(10, 19, ranges.get(0));
+    }
+
+    @Test
+    public void invalidRangesSendTheWholeFile() {
+        assertNull(RangeUtil.parse("items=0-99", LENGTH));
+        assertNull(RangeUtil.parse("bytes=99-0", LENGTH));
+        assertNull(RangeUtil.parse("bytes=100", LENGTH));
+        assertNull(RangeUtil.parse("bytes=a-b", LENGTH));
+    }
+
+    @Test
+    public void tooManyRangesSendTheWholeFile() {
+        StringBuilder range = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 16; i++) {
+            range.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        assertEquals(16, RangeUtil.parse(range.toString(), LENGTH).size());
+        range.append(",200-200");
+        assertNull(RangeUtil.parse(range.toString(), LENGTH));
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @param range
+     */
+    private static void assertRange(long start, long end, ByteRange range) {
+        assertEquals(start, range.getStart());
+        assertEquals(end, range.getEnd());
+    }
+}